@@ -15,6 +15,9 @@ public class GetAccountCmd implements Serializable {
 	private boolean isActive;
 	private String owner;
 
+	// version of the last change of the account, see GetChangesSinceCmd
+	private long version;
+
 	private boolean accountFound = false;
 
 	public String getNumber() {
@@ -45,6 +48,14 @@ public class GetAccountCmd implements Serializable {
 		this.owner = owner;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	public boolean accountFound() {
 		return accountFound;
 	}
@@ -8,6 +8,9 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class acts as the main bank server.
@@ -19,8 +22,19 @@ public class BankServer {
 
 	private final int PORT = 1337;
 
+	static final String TRANSPORT = "http";
+
+	// responses with a smaller body are sent uncompressed
+	static final int COMPRESSION_THRESHOLD = 1024;
+	static final int COMPRESSION_BUFFER = 8192;
+
+	// favor CPU over ratio, account numbers are random and compress poorly anyway
+	static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
 	private ServerSocket socket;
 	private Bank bank;
+	private final ChangeLog changeLog = new ChangeLog();
+	private final CommandMetrics metrics = new CommandMetrics(TRANSPORT);
 
 	public BankServer() {
 		try {
@@ -43,62 +57,95 @@ public class BankServer {
 	private void handleRequest() {
 		try {
 			Socket socket = this.socket.accept();
+			long arrival = System.nanoTime();
+			StageEvent accept = StageEvent.begin(TRANSPORT, StageEvent.ACCEPT);
 
 			log("\nNew request received from: " + socket.getInetAddress().toString());
 
 			DataInputStream dIn = new DataInputStream(socket.getInputStream());
-			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+			accept.end(null, 0);
 
+			StageEvent read = StageEvent.begin(TRANSPORT, StageEvent.READ);
 			String line;
 			String lastLine = null;
+			String acceptEncoding = null;
+			int length = 0;
 			while ((line = dIn.readLine()) != null) {
 				System.out.println(line);
 				lastLine = line;
+				length += line.length() + 2;
+
+				if (line.toLowerCase().startsWith("accept-encoding:"))
+					acceptEncoding = line.substring("accept-encoding:".length()).trim().toLowerCase();
 			}
+			read.end(null, length);
 
 			if (lastLine != null) {
 				// last line is content
+				StageEvent decode = StageEvent.begin(TRANSPORT, StageEvent.DESERIALIZE);
 				Object command = deserialize(lastLine);
-				Serializable responseCommand = null;
+				decode.end(command, lastLine.length());
+
+				long start = metrics.started(command, arrival);
+				StageEvent dispatch = StageEvent.begin(TRANSPORT, StageEvent.DISPATCH);
+				Serializable responseCommand;
+				try {
+					responseCommand = handleCommand(command);
+				} catch (IOException | RuntimeException e) {
+					metrics.failed(command, start, e);
+					throw e;
+				}
+				dispatch.end(responseCommand, 0);
+				metrics.completed(command, start, responseCommand);
 
-				if (command instanceof NewAccountCmd) {
-					responseCommand = handleNewAccountCommand((NewAccountCmd) command);
+				// write back to client
+				sendResponse(responseCommand, socket.getOutputStream(), acceptEncoding);
+			}
 
-				} else if (command instanceof GetAccountCmd) {
-					responseCommand = handleGetAccountCommand((GetAccountCmd) command);
+			socket.close();
 
-				} else if (command instanceof GetAccountNumbersCmd) {
-					responseCommand = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
+		} catch (IOException | ClassCastException | ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
 
-				} else if (command instanceof DepositCmd) {
-					responseCommand = handleDepositCommand((DepositCmd) command);
+	private Serializable handleCommand(Object command) throws IOException {
+		Serializable responseCommand = null;
 
-				} else if (command instanceof WithdrawCmd) {
-					responseCommand = handleWithdrawCommand((WithdrawCmd) command);
+		if (command instanceof NewAccountCmd) {
+			responseCommand = handleNewAccountCommand((NewAccountCmd) command);
 
-				} else if (command instanceof CloseAccountCmd) {
-					responseCommand = handleCloseAccountCommand((CloseAccountCmd) command);
+		} else if (command instanceof GetAccountCmd) {
+			responseCommand = handleGetAccountCommand((GetAccountCmd) command);
 
-				} else if (command instanceof TransferCmd) {
-					responseCommand = handleTransferCommand((TransferCmd) command);
-				}
-				// write back to client
-				sendResponse(responseCommand, out);
-			}
+		} else if (command instanceof GetAccountNumbersCmd) {
+			responseCommand = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
 
-			// socket.close();
+		} else if (command instanceof GetChangesSinceCmd) {
+			responseCommand = handleGetChangesSinceCommand((GetChangesSinceCmd) command);
 
-		} catch (IOException | ClassCastException | ClassNotFoundException e) {
-			e.printStackTrace();
+		} else if (command instanceof DepositCmd) {
+			responseCommand = handleDepositCommand((DepositCmd) command);
+
+		} else if (command instanceof WithdrawCmd) {
+			responseCommand = handleWithdrawCommand((WithdrawCmd) command);
+
+		} else if (command instanceof CloseAccountCmd) {
+			responseCommand = handleCloseAccountCommand((CloseAccountCmd) command);
+
+		} else if (command instanceof TransferCmd) {
+			responseCommand = handleTransferCommand((TransferCmd) command);
 		}
+
+		return responseCommand;
 	}
 
-	private static String serialize(Serializable o) throws IOException {
+	static byte[] serializeRaw(Serializable o) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ObjectOutputStream oos = new ObjectOutputStream(baos);
 		oos.writeObject(o);
 		oos.close();
-		return Base64.getEncoder().encodeToString(baos.toByteArray());
+		return baos.toByteArray();
 	}
 
 	private static Object deserialize(String s) throws IOException, ClassNotFoundException {
@@ -109,26 +156,124 @@ public class BankServer {
 		return o;
 	}
 
-	private void sendResponse(Serializable command, BufferedWriter out) throws IOException {
+	private void sendResponse(Serializable command, OutputStream socketOut, String acceptEncoding)
+			throws IOException {
 		String statusLine = command != null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 400 Bad Request\r\n";
 
-		String responseString = serialize(command);
+		StageEvent encode = StageEvent.begin(TRANSPORT, StageEvent.SERIALIZE);
+		byte[] raw = serializeRaw(command);
+		int bodyLength = 4 * ((raw.length + 2) / 3); // length of the Base64 body
+		encode.end(command, bodyLength);
 
-		String contentLengthLine = "Content-Length: " + responseString.length() + "\r\n";
+		String contentEncoding = chooseEncoding(acceptEncoding, bodyLength);
 
+		StageEvent write = StageEvent.begin(TRANSPORT, StageEvent.WRITE);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socketOut, "UTF-8"));
 		out.write(statusLine);
 		out.write("Server: vesys Java BankServer v1.0\r\n");
-		out.write("application/octet-stream\r\n");
-		out.write(contentLengthLine);
+		out.write("Content-Type: application/octet-stream\r\n");
+		out.write("Vary: Accept-Encoding\r\n");
+		if (contentEncoding != null) {
+			// body is streamed, the end of the body is signaled by closing the connection
+			out.write("Content-Encoding: " + contentEncoding + "\r\n");
+		} else {
+			out.write("Content-Length: " + bodyLength + "\r\n");
+		}
 		out.write("Connection: close\r\n");
 		out.write("\r\n");
-		out.write(responseString);
 		out.flush();
+
+		writeBody(raw, contentEncoding, socketOut);
+		write.end(command, bodyLength);
+
+		if (contentEncoding != null)
+			log("Sent " + contentEncoding + " compressed response (" + bodyLength + " bytes uncompressed)");
+	}
+
+	/**
+	 * Selects the content coding for a response body of the given length. Returns
+	 * <code>null</code> if the body should be sent uncompressed.
+	 *
+	 * The header is a comma separated list of codings with optional q-values,
+	 * e.g. <code>gzip;q=0.5, deflate</code>. Names are case-insensitive, a
+	 * coding with q=0 is not acceptable and <code>*</code> stands for every
+	 * coding not listed. The coding with the higher q-value wins, gzip if both
+	 * are equal.
+	 */
+	static String chooseEncoding(String acceptEncoding, int bodyLength) {
+		if (acceptEncoding == null || bodyLength < COMPRESSION_THRESHOLD)
+			return null;
+
+		double gzip = -1, deflate = -1, any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			double q = 1;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.regionMatches(true, 0, "q=", 0, 2)) {
+					try {
+						q = Double.parseDouble(param.substring(2).trim());
+					} catch (NumberFormatException e) {
+						q = 0; // an invalid q-value is not acceptable
+					}
+				}
+			}
+
+			if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip"))
+				gzip = Math.max(gzip, q);
+			else if (name.equalsIgnoreCase("deflate"))
+				deflate = Math.max(deflate, q);
+			else if (name.equals("*"))
+				any = Math.max(any, q);
+		}
+		if (gzip < 0)
+			gzip = any;
+		if (deflate < 0)
+			deflate = any;
+
+		if (gzip > 0 && gzip >= deflate)
+			return "gzip";
+		else if (deflate > 0)
+			return "deflate";
+
+		return null;
+	}
+
+	/**
+	 * Writes the Base64 encoded body to the given stream. If a content coding is
+	 * given, the Base64 text is compressed on the fly without buffering the
+	 * whole encoded body in memory.
+	 */
+	static void writeBody(byte[] raw, String contentEncoding, OutputStream out) throws IOException {
+		OutputStream compressed;
+
+		if ("gzip".equals(contentEncoding))
+			compressed = new GZIPOutputStream(out, COMPRESSION_BUFFER) {
+				{
+					def.setLevel(COMPRESSION_LEVEL);
+				}
+			};
+		else if ("deflate".equals(contentEncoding))
+			compressed = new DeflaterOutputStream(out, new Deflater(COMPRESSION_LEVEL), COMPRESSION_BUFFER);
+		else
+			compressed = null;
+
+		if (compressed == null) {
+			out.write(Base64.getEncoder().encode(raw));
+			out.flush();
+			return;
+		}
+
+		OutputStream body = Base64.getEncoder().wrap(compressed);
+		body.write(raw);
+		body.close(); // finishes the compressed stream
 	}
 
 	private Serializable handleNewAccountCommand(NewAccountCmd cmd) throws IOException {
 		// create local account and set number on command
 		cmd.setAccountNumber(bank.createAccount(cmd.getOwner()));
+		changeLog.stamp(cmd.getAccountNumber());
 
 		log("Created new account for : " + cmd.getOwner() + " - accountNr: " + cmd.getAccountNumber());
 
@@ -141,10 +286,7 @@ public class BankServer {
 
 		// set relevant data on command
 		if (account != null) {
-			cmd.setBalance(account.getBalance());
-			cmd.setActive(account.isActive());
-			cmd.setOwner(account.getOwner());
-			cmd.setAccountFound(true);
+			state(account, cmd);
 
 			log("Send account details of accountNr: " + cmd.getNumber());
 
@@ -164,6 +306,38 @@ public class BankServer {
 		return cmd;
 	}
 
+	private Serializable handleGetChangesSinceCommand(GetChangesSinceCmd cmd) throws IOException {
+		List<String> numbers = new ArrayList<>();
+		cmd.setHeadVersion(changeLog.changedSince(cmd.getEpoch(), cmd.getVersion(), numbers));
+		cmd.setEpoch(changeLog.epoch());
+
+		List<GetAccountCmd> accounts = new ArrayList<>(numbers.size());
+		for (String number : numbers) {
+			Account account = bank.getAccount(number);
+			if (account != null)
+				accounts.add(state(account, new GetAccountCmd(number)));
+		}
+		cmd.setAccounts(accounts);
+
+		log("Send " + accounts.size() + " changes since version " + cmd.getVersion() + " to client.");
+
+		return cmd;
+	}
+
+	/**
+	 * Copies the state of the account and the version of its last change to
+	 * the command. Requests are handled one after the other, so the version
+	 * always belongs to the state.
+	 */
+	private GetAccountCmd state(Account account, GetAccountCmd cmd) {
+		cmd.setBalance(account.getBalance());
+		cmd.setActive(account.isActive());
+		cmd.setOwner(account.getOwner());
+		cmd.setVersion(changeLog.versionOf(account.getNumber()));
+		cmd.setAccountFound(true);
+		return cmd;
+	}
+
 	private Serializable handleDepositCommand(DepositCmd cmd) throws IOException {
 		Account account = bank.getAccount(cmd.getAccountNr());
 
@@ -172,6 +346,7 @@ public class BankServer {
 		try {
 			account.deposit(cmd.getAmount());
 			cmd.setNewBalance(account.getBalance());
+			cmd.setNewVersion(changeLog.stamp(cmd.getAccountNr()));
 			log("Deposit passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			err("Deposit failed with InactiveException!");
@@ -189,6 +364,7 @@ public class BankServer {
 		try {
 			account.withdraw(cmd.getAmount());
 			cmd.setNewBalance(account.getBalance());
+			cmd.setNewVersion(changeLog.stamp(cmd.getAccountNr()));
 			log("Withdraw passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -208,10 +384,12 @@ public class BankServer {
 
 		boolean closed = bank.closeAccount(cmd.getAccountNr());
 
-		if (closed)
+		if (closed) {
+			cmd.setVersion(changeLog.stamp(cmd.getAccountNr()));
 			log("Account " + cmd.getAccountNr() + " has been closed!");
-		else
+		} else {
 			err("Account " + cmd.getAccountNr() + " could not be closed!");
+		}
 
 		cmd.setResult(closed);
 
@@ -227,6 +405,10 @@ public class BankServer {
 
 		try {
 			bank.transfer(from, to, cmd.getAmount());
+			cmd.setBalanceFromAccount(from.getBalance());
+			cmd.setBalanceToAccount(to.getBalance());
+			cmd.setVersionFromAccount(changeLog.stamp(from.getNumber()));
+			cmd.setVersionToAccount(changeLog.stamp(to.getNumber()));
 			log("Transfer passed, new balances [from: " + from.getBalance() + ", to: " + to.getBalance() + "]");
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -267,37 +449,51 @@ public class BankServer {
 
 		@Override
 		public Set<String> getAccountNumbers() {
-			Set<String> accountNumbers = new HashSet<>();
-			for (Map.Entry<String, Account> entry : accounts.entrySet()) {
-				if (entry.getValue().isActive())
-					accountNumbers.add(entry.getKey());
-			}
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Set<String> accountNumbers = new HashSet<>();
+				for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+					if (entry.getValue().isActive())
+						accountNumbers.add(entry.getKey());
+				}
 
-			return accountNumbers;
+				return accountNumbers;
+			} finally {
+				event.end("getAccountNumbers", null);
+			}
 		}
 
 		@Override
 		public String createAccount(String owner) {
-			Account newAccount = new Account(owner);
-			accounts.put(newAccount.getNumber(), newAccount);
-
-			return newAccount.getNumber();
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Account newAccount = new Account(owner);
+				accounts.put(newAccount.getNumber(), newAccount);
+
+				return newAccount.getNumber();
+			} finally {
+				event.end("createAccount", null);
+			}
 		}
 
 		@Override
 		public boolean closeAccount(String number) {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!accounts.containsKey(number))
+					return false;
 
-			if (!accounts.containsKey(number))
-				return false;
+				Account account = accounts.get(number);
 
-			Account account = accounts.get(number);
+				if (account.isActive() && account.getBalance() == 0) {
+					account.active = false;
+					return true;
+				}
 
-			if (account.isActive() && account.getBalance() == 0) {
-				account.active = false;
-				return true;
+				return false;
+			} finally {
+				event.end("closeAccount", number);
 			}
-
-			return false;
 		}
 
 		@Override
@@ -308,12 +504,16 @@ public class BankServer {
 		@Override
 		public void transfer(bank.Account from, bank.Account to, double amount)
 				throws IOException, InactiveException, OverdrawException, IllegalArgumentException {
-
-			if (amount < 0)
-				throw new IllegalArgumentException("Can't transfer negative values!");
-
-			from.withdraw(amount);
-			to.deposit(amount);
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (amount < 0)
+					throw new IllegalArgumentException("Can't transfer negative values!");
+
+				from.withdraw(amount);
+				to.deposit(amount);
+			} finally {
+				event.end("transfer", from.getNumber());
+			}
 		}
 
 	}
@@ -354,22 +554,32 @@ public class BankServer {
 
 		@Override
 		public void deposit(double amount) throws InactiveException {
-			if (!isActive())
-				throw new InactiveException("Can't deposit on inactive account");
-
-			if (amount > 0)
-				this.balance += amount;
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't deposit on inactive account");
+
+				if (amount > 0)
+					this.balance += amount;
+			} finally {
+				event.end("deposit", number);
+			}
 		}
 
 		@Override
 		public void withdraw(double amount) throws InactiveException, OverdrawException {
-			if (!isActive())
-				throw new InactiveException("Can't withdraw on inactive account");
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't withdraw on inactive account");
 
-			if (balance < amount)
-				throw new OverdrawException("Insufficient balance");
+				if (balance < amount)
+					throw new OverdrawException("Insufficient balance");
 
-			this.balance -= amount;
+				this.balance -= amount;
+			} finally {
+				event.end("withdraw", number);
+			}
 		}
 
 	}
@@ -0,0 +1,66 @@
+package server.connectivity;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Keeps the version of the last change of every account. Each change gets a
+ * new, increasing version, so the accounts changed after a given version can
+ * be looked up without scanning the whole bank.
+ * 
+ * Versions start from the beginning with every log, so each log has a random
+ * epoch which tells the clients whether their version belongs to it.
+ * 
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+class ChangeLog {
+
+	private final TreeMap<Long, String> changes = new TreeMap<>();
+	private final Map<String, Long> versions = new HashMap<>();
+	private long head;
+
+	private final long epoch = new Random().nextLong();
+
+	long epoch() {
+		return epoch;
+	}
+
+	/**
+	 * Marks the account as changed and returns the new version.
+	 */
+	synchronized long stamp(String number) {
+		Long previous = versions.put(number, ++head);
+		if (previous != null)
+			changes.remove(previous);
+
+		changes.put(head, number);
+		return head;
+	}
+
+	/**
+	 * Version of the last change of the account, 0 if it has not been stamped
+	 * yet.
+	 */
+	synchronized long versionOf(String number) {
+		Long version = versions.get(number);
+		return version != null ? version : 0;
+	}
+
+	/**
+	 * Adds the accounts changed after the given version to out and returns
+	 * the current version. A version of another epoch (e.g. the server was
+	 * restarted) yields all accounts.
+	 */
+	synchronized long changedSince(long epoch, long version, Collection<String> out) {
+		if (epoch != this.epoch)
+			version = 0;
+
+		out.addAll(changes.tailMap(version, false).values());
+		return head;
+	}
+
+}
@@ -0,0 +1,378 @@
+package server.connectivity;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import bank.commands.DepositCmd;
+import bank.commands.TransferCmd;
+import bank.commands.WithdrawCmd;
+
+/**
+ * Requests, errors, in-flight requests, queue time and execution time per
+ * command type. The queue time is the time from the arrival of a request
+ * until its execution starts, the execution time the time spent in the
+ * handler.
+ *
+ * The statistics of every command type are registered as platform MBean
+ * <code>bank.server:type=CommandMetrics,transport=...,command=...</code> and
+ * are printed every <code>bank.metrics.interval</code> seconds (default 60, 0
+ * disables the dump). Recording is lock-free and may be called by any number
+ * of threads.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class CommandMetrics {
+
+	static final long DUMP_INTERVAL = Long.getLong("bank.metrics.interval", 60);
+
+	private final String transport;
+	private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+	public CommandMetrics(String transport) {
+		this.transport = transport;
+
+		if (DUMP_INTERVAL > 0) {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "bank-metrics-" + transport);
+				t.setDaemon(true);
+				return t;
+			});
+			timer.scheduleAtFixedRate(() -> dump(System.out), DUMP_INTERVAL, DUMP_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Marks the command as in flight and records its queue time. Returns the
+	 * start of the execution to pass to {@link #completed} or {@link #failed}.
+	 *
+	 * @param arrival {@link System#nanoTime()} when the request arrived
+	 */
+	public long started(Object command, long arrival) {
+		long start = System.nanoTime();
+
+		Stats s = stats(command);
+		s.inFlight.increment();
+		s.queueTime.record(start - arrival);
+
+		return start;
+	}
+
+	/**
+	 * Records the execution of a command and the error of its response, if
+	 * any.
+	 */
+	public void completed(Object command, long start, Object response) {
+		Stats s = finish(command, start);
+
+		String error = errorOf(response);
+		if (error != null)
+			s.error(error);
+	}
+
+	/**
+	 * Records the execution of a command which failed with an exception.
+	 */
+	public void failed(Object command, long start, Throwable t) {
+		finish(command, start).error(t.getClass().getSimpleName());
+	}
+
+	private Stats finish(Object command, long start) {
+		long executionTime = System.nanoTime() - start;
+
+		Stats s = stats(command);
+		s.inFlight.decrement();
+		s.requests.increment();
+		s.executionTime.record(executionTime);
+		return s;
+	}
+
+	static String errorOf(Object response) {
+		if (response instanceof DepositCmd && ((DepositCmd) response).isError())
+			return "InactiveException"; // the only failure of a deposit
+
+		if (response instanceof WithdrawCmd && ((WithdrawCmd) response).isError())
+			return errMsg(((WithdrawCmd) response).getErrMsg());
+
+		if (response instanceof TransferCmd && ((TransferCmd) response).hasError())
+			return errMsg(((TransferCmd) response).getErrMsg());
+
+		return null;
+	}
+
+	private static String errMsg(String errMsg) {
+		return errMsg != null ? errMsg : "Error";
+	}
+
+	private Stats stats(Object command) {
+		String type = command != null ? command.getClass().getSimpleName() : "Unknown";
+
+		Stats s = stats.get(type);
+		if (s == null) {
+			Stats created = new Stats(type);
+			s = stats.putIfAbsent(type, created);
+			if (s == null) {
+				s = created;
+				register(s);
+			}
+		}
+		return s;
+	}
+
+	private void register(Stats s) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("bank.server:type=CommandMetrics,transport=" + transport + ",command="
+					+ s.command);
+
+			// e.g. a second server of the same transport in this JVM
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(s, name);
+
+		} catch (JMException e) {
+			System.err.println("Metrics of " + s.command + " could not be registered: " + e);
+		}
+	}
+
+	/**
+	 * Prints the statistics of all command types, times in microseconds.
+	 */
+	public void dump(PrintStream out) {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format(Locale.ROOT, "%n%s command metrics%n%-22s %9s %7s %8s %10s %10s %10s %10s %10s%n",
+				transport, "command", "requests", "errors", "inflight", "queue p50", "queue p99", "exec p50",
+				"exec p99", "exec max"));
+
+		for (Stats stat : new TreeMap<>(stats).values()) {
+			s.append(String.format(Locale.ROOT, "%-22s %9d %7d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					stat.command, stat.getRequests(), stat.getErrors(), stat.getInFlight(),
+					stat.getQueueTime50thPercentile(), stat.getQueueTime99thPercentile(),
+					stat.getExecutionTime50thPercentile(), stat.getExecutionTime99thPercentile(),
+					stat.getExecutionTimeMax()));
+
+			Map<String, Long> errors = stat.getErrorsByType();
+			if (!errors.isEmpty())
+				s.append(String.format(Locale.ROOT, "%-22s errors: %s%n", "", errors));
+		}
+
+		out.print(s);
+	}
+
+	private static class Stats implements CommandStatsMXBean {
+		private final String command;
+
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder inFlight = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+		private final Histogram queueTime = new Histogram();
+		private final Histogram executionTime = new Histogram();
+
+		Stats(String command) {
+			this.command = command;
+		}
+
+		void error(String type) {
+			LongAdder count = errors.get(type);
+			if (count == null) {
+				LongAdder created = new LongAdder();
+				count = errors.putIfAbsent(type, created);
+				if (count == null)
+					count = created;
+			}
+			count.increment();
+		}
+
+		@Override
+		public String getCommand() {
+			return command;
+		}
+
+		@Override
+		public long getRequests() {
+			return requests.sum();
+		}
+
+		@Override
+		public long getInFlight() {
+			return inFlight.sum();
+		}
+
+		@Override
+		public long getErrors() {
+			long sum = 0;
+			for (LongAdder count : errors.values())
+				sum += count.sum();
+			return sum;
+		}
+
+		@Override
+		public Map<String, Long> getErrorsByType() {
+			Map<String, Long> result = new TreeMap<>();
+			for (Map.Entry<String, LongAdder> e : errors.entrySet())
+				result.put(e.getKey(), e.getValue().sum());
+			return result;
+		}
+
+		@Override
+		public double getQueueTimeMean() {
+			return queueTime.mean() / 1e3;
+		}
+
+		@Override
+		public double getQueueTime50thPercentile() {
+			return queueTime.percentile(50) / 1e3;
+		}
+
+		@Override
+		public double getQueueTime99thPercentile() {
+			return queueTime.percentile(99) / 1e3;
+		}
+
+		@Override
+		public double getQueueTime999thPercentile() {
+			return queueTime.percentile(99.9) / 1e3;
+		}
+
+		@Override
+		public double getQueueTimeMax() {
+			return queueTime.max() / 1e3;
+		}
+
+		@Override
+		public double getExecutionTimeMean() {
+			return executionTime.mean() / 1e3;
+		}
+
+		@Override
+		public double getExecutionTime50thPercentile() {
+			return executionTime.percentile(50) / 1e3;
+		}
+
+		@Override
+		public double getExecutionTime99thPercentile() {
+			return executionTime.percentile(99) / 1e3;
+		}
+
+		@Override
+		public double getExecutionTime999thPercentile() {
+			return executionTime.percentile(99.9) / 1e3;
+		}
+
+		@Override
+		public double getExecutionTimeMax() {
+			return executionTime.max() / 1e3;
+		}
+
+		@Override
+		public void reset() {
+			requests.reset();
+			errors.clear();
+			queueTime.reset();
+			executionTime.reset();
+		}
+	}
+
+	/**
+	 * Lock-free histogram of durations in ns. Every power of two is split
+	 * into {@value #SUB_BUCKETS} buckets, so a percentile is accurate to
+	 * 1/{@value #SUB_BUCKETS} of its value.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+
+			counts.incrementAndGet(index(nanos));
+			count.increment();
+			sum.add(nanos);
+
+			long m;
+			while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+				;
+		}
+
+		static int index(long value) {
+			if (value < SUB_BUCKETS)
+				return (int) value;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * Largest value of the bucket.
+		 */
+		static long upperBound(int index) {
+			if (index < SUB_BUCKETS)
+				return index;
+
+			int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+			int sub = index % SUB_BUCKETS;
+			return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+
+		double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		long percentile(double percent) {
+			long[] snapshot = new long[counts.length()];
+			long total = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+			if (total == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				seen += snapshot[i];
+				if (seen >= rank)
+					return Math.min(upperBound(i), max.get());
+			}
+			return max.get();
+		}
+
+		void reset() {
+			for (int i = 0; i < counts.length(); i++)
+				counts.set(i, 0);
+			count.reset();
+			sum.reset();
+			max.set(0);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package server.connectivity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import bank.commands.GetAccountNumbersCmd;
+
+/**
+ * Measures bytes on the wire and CPU cost of the HTTP response body encodings
+ * for large account listings.
+ *
+ * <pre>
+ * Usage: java server.connectivity.CompressionBenchmark [accounts...]
+ * </pre>
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class CompressionBenchmark {
+
+	private static final String[] ENCODINGS = { null, "gzip", "deflate" };
+
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURE_ROUNDS = 20;
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = { 10_000, 100_000 };
+
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		System.out.println("accounts;encoding;bytes;ratio;cpu ms/response");
+
+		for (int size : sizes) {
+			Set<String> accounts = new HashSet<>();
+			for (int i = 0; i < size; i++)
+				accounts.add(UUID.randomUUID().toString());
+
+			GetAccountNumbersCmd cmd = new GetAccountNumbersCmd();
+			cmd.setAccounts(accounts);
+
+			long identityBytes = 0;
+
+			for (String encoding : ENCODINGS) {
+				for (int i = 0; i < WARMUP_ROUNDS; i++)
+					encode(cmd, encoding);
+
+				long bytes = 0;
+				long cpu = threads.getCurrentThreadCpuTime();
+				for (int i = 0; i < MEASURE_ROUNDS; i++)
+					bytes = encode(cmd, encoding);
+				cpu = threads.getCurrentThreadCpuTime() - cpu;
+
+				if (encoding == null)
+					identityBytes = bytes;
+
+				System.out.println(size + ";" + (encoding == null ? "identity" : encoding) + ";" + bytes + ";"
+						+ String.format("%.3f", (double) bytes / identityBytes) + ";"
+						+ String.format("%.3f", cpu / 1e6 / MEASURE_ROUNDS));
+			}
+		}
+	}
+
+	/**
+	 * Encodes the response body the same way the server does and returns the
+	 * number of body bytes written.
+	 */
+	private static long encode(GetAccountNumbersCmd cmd, String encoding) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BankServer.writeBody(BankServer.serializeRaw(cmd), encoding, out);
+		return out.size();
+	}
+
+}
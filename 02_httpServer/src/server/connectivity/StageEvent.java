@@ -0,0 +1,121 @@
+package server.connectivity;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import bank.commands.CloseAccountCmd;
+import bank.commands.DepositCmd;
+import bank.commands.GetAccountCmd;
+import bank.commands.NewAccountCmd;
+import bank.commands.TransferCmd;
+import bank.commands.WithdrawCmd;
+
+/**
+ * JDK Flight Recorder event of one stage of the handling of a request, e.g.
+ * <code>java -XX:StartFlightRecording=filename=bank.jfr server.Main</code>
+ * and opened in JMC (event type <code>bank.server.RequestStage</code>).
+ *
+ * The accept stage starts when a connection or message has arrived and covers
+ * its setup up to the read of the request, the wait for the next request is
+ * not part of it. For WebSockets it is the opening of a session. The
+ * WebSocket container reads the frames itself, so there is no frame read
+ * stage, and the write only queues the response for the sender of the
+ * session.
+ *
+ * Stages of the bank execution nest in the dispatch of the command, the
+ * transfer in the bank nests the withdraw and the deposit. Lookups of accounts
+ * are not recorded. The account number is recorded as hash only. While the
+ * event is disabled, begin and end cost next to nothing.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+@Name("bank.server.RequestStage")
+@Label("Request Stage")
+@Category({ "Bank", "Server" })
+@Description("A stage of the handling of a bank request")
+@StackTrace(false)
+public class StageEvent extends Event {
+
+	public static final String ACCEPT = "accept";
+	public static final String READ = "frame read";
+	public static final String DESERIALIZE = "deserialize";
+	public static final String DISPATCH = "dispatch";
+	public static final String EXECUTE = "bank execution";
+	public static final String SERIALIZE = "serialize";
+	public static final String WRITE = "write";
+
+	@Label("Transport")
+	String transport;
+
+	@Label("Stage")
+	String stage;
+
+	@Label("Command")
+	@Description("Type of the command or operation of the bank")
+	String command;
+
+	@Label("Account Hash")
+	@Description("Hash code of the account number, 0 if none")
+	int accountHash;
+
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+
+	public static StageEvent begin(String transport, String stage) {
+		StageEvent event = new StageEvent();
+		event.transport = transport;
+		event.stage = stage;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends the stage of the given command, the account is taken from the
+	 * command.
+	 */
+	public void end(Object command, int payloadSize) {
+		end();
+		if (shouldCommit())
+			commit(command != null ? command.getClass().getSimpleName() : null, accountOf(command), payloadSize);
+	}
+
+	/**
+	 * Ends a stage of the bank.
+	 */
+	public void end(String operation, String account) {
+		end();
+		if (shouldCommit())
+			commit(operation, account, 0);
+	}
+
+	private void commit(String command, String account, int payloadSize) {
+		this.command = command;
+		this.accountHash = account != null ? account.hashCode() : 0;
+		this.payloadSize = payloadSize;
+		commit();
+	}
+
+	static String accountOf(Object command) {
+		if (command instanceof GetAccountCmd)
+			return ((GetAccountCmd) command).getNumber();
+		if (command instanceof NewAccountCmd)
+			return ((NewAccountCmd) command).getAccountNumber();
+		if (command instanceof DepositCmd)
+			return ((DepositCmd) command).getAccountNr();
+		if (command instanceof WithdrawCmd)
+			return ((WithdrawCmd) command).getAccountNr();
+		if (command instanceof CloseAccountCmd)
+			return ((CloseAccountCmd) command).getAccountNr();
+		if (command instanceof TransferCmd)
+			return ((TransferCmd) command).getFromAccountNr();
+		return null;
+	}
+
+}
@@ -0,0 +1,35 @@
+package bank;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * The BatchBankDriver interface extends {@link BankDriver2} with update
+ * handlers which are informed about a whole batch of changed accounts at once.
+ * Servers which coalesce change notifications (e.g. the JMS bank server) can
+ * thereby wake up a client once per batch instead of once per account.
+ *
+ * @see BankDriver2
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public interface BatchBankDriver extends BankDriver2 {
+
+	/**
+	 * Registers a batch update handler. Whenever a batch of changed accounts
+	 * is received, the accountsChanged method is invoked once for the batch.
+	 *
+	 * @param handler the batch update handler to be registered
+	 */
+	void registerBatchUpdateHandler(BatchUpdateHandler handler) throws IOException;
+
+	interface BatchUpdateHandler {
+		/**
+		 * The accountsChanged method is invoked whenever a batch of account
+		 * changes is received from the server.
+		 *
+		 * @param ids the numbers of the changed accounts, never empty
+		 */
+		void accountsChanged(Set<String> ids) throws IOException;
+	}
+}
@@ -0,0 +1,19 @@
+package bank;
+
+/**
+ * A bank which serves its accounts from a local cache of the remote
+ * accounts. Tools which have to see the state of the server, e.g. to check
+ * the balances after a benchmark, invalidate the cache first.
+ *
+ * @see AccountCache
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public interface CachingBank extends Bank {
+
+	/**
+	 * Invalidates all cached accounts, so the next access of an account reads
+	 * its state from the server.
+	 */
+	void invalidateCache();
+}
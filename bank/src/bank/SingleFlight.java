@@ -0,0 +1,103 @@
+package bank;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical reads of a remote bank driver.
+ *
+ * The first caller for a key executes the request, callers arriving with the
+ * same key while it is in flight wait for it and get the same result (or
+ * exception) instead of sending their own request. Once the request completed
+ * the next caller starts a new one.
+ *
+ * A joining caller gets a result which may have been read by the server
+ * before the caller's own latest change, e.g. a deposit which completed while
+ * the request was in flight. The drivers therefore do not return the result
+ * as it is but write it to their {@link AccountCache}, which ignores states
+ * older than the one of the cached copy, and return the copy.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class SingleFlight<K, V> {
+
+	public interface Call<V> {
+		V call() throws IOException;
+	}
+
+	private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Executes the call, or waits for the call already in flight for the key.
+	 */
+	public V execute(K key, Call<V> call) throws IOException {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+		if (running != null) {
+			shared.incrementAndGet();
+			return await(running);
+		}
+
+		executed.incrementAndGet();
+		try {
+			V result = call.call();
+			flight.complete(result);
+			return result;
+		} catch (Throwable t) {
+			flight.completeExceptionally(t);
+			throw t;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	private static <V> V await(CompletableFuture<V> flight) throws IOException {
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a shared request");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			// rethrown in a new exception to keep the stack of this caller
+			if (cause instanceof IOException)
+				throw new IOException(cause.getMessage(), cause);
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Number of requests actually sent.
+	 */
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	/**
+	 * Number of callers which got the result of a request in flight.
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SingleFlight [executed=" + executed + ", shared=" + shared + "]";
+	}
+
+}
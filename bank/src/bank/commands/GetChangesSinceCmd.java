@@ -0,0 +1,62 @@
+package bank.commands;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Requests the accounts which changed after the given version of the bank.
+ * The server stamps every change with a new version and answers with the
+ * current state of the changed accounts (including closed ones) and the head
+ * version, which the client passes with its next request.
+ *
+ * Versions are only comparable within one epoch of the server, a restarted
+ * server starts a new epoch and counts its versions from the start. If the
+ * epoch of the request is not the current one, all accounts are sent.
+ */
+public class GetChangesSinceCmd implements Serializable {
+
+	private static final long serialVersionUID = 2967517304185432208L;
+
+	private long epoch;
+	private long version;
+	private long headVersion;
+	private List<GetAccountCmd> accounts;
+
+	public GetChangesSinceCmd(long epoch, long version) {
+		this.epoch = epoch;
+		this.version = version;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public void setEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public long getHeadVersion() {
+		return headVersion;
+	}
+
+	public void setHeadVersion(long headVersion) {
+		this.headVersion = headVersion;
+	}
+
+	public List<GetAccountCmd> getAccounts() {
+		return accounts;
+	}
+
+	public void setAccounts(List<GetAccountCmd> accounts) {
+		this.accounts = accounts;
+	}
+
+}
@@ -0,0 +1,49 @@
+package bank.commands;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Subscribes the sending connection to account change events. Used by
+ * transports which push the changes over the connection of the client.
+ *
+ * Without accounts and owners the connection receives the changes of all
+ * accounts, otherwise only the changes of the accounts with the given numbers
+ * or of the given owners.
+ */
+public class SubscribeCmd implements Serializable {
+
+	private static final long serialVersionUID = -1828351960712455393L;
+
+	private Set<String> accounts;
+	private Set<String> owners;
+
+	public SubscribeCmd() {
+	}
+
+	public SubscribeCmd(Set<String> accounts, Set<String> owners) {
+		this.accounts = accounts;
+		this.owners = owners;
+	}
+
+	public Set<String> getAccounts() {
+		return accounts;
+	}
+
+	public void setAccounts(Set<String> accounts) {
+		this.accounts = accounts;
+	}
+
+	public Set<String> getOwners() {
+		return owners;
+	}
+
+	public void setOwners(Set<String> owners) {
+		this.owners = owners;
+	}
+
+	public boolean isFiltered() {
+		return (accounts != null && !accounts.isEmpty()) || (owners != null && !owners.isEmpty());
+	}
+
+}
@@ -0,0 +1,332 @@
+package bank.gui.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bank.Account;
+import bank.Bank;
+import bank.CachingBank;
+
+/**
+ * Multi-threaded benchmark against any {@link Bank}.
+ *
+ * Every thread executes the same number of operations, either on accounts
+ * shared by all threads ({@link Contention#CONTENDED}) or on accounts of its
+ * own ({@link Contention#DISJOINT}). The latency of every operation is
+ * recorded with {@link System#nanoTime()}. The benchmark creates its own
+ * accounts (owner {@value #OWNER}), checks that their total balance after the
+ * run is the one before plus the successful deposits minus the successful
+ * withdrawals (e.g. one deposit more with an odd number of operations) and
+ * closes them afterwards.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class ConcurrencyBenchmark {
+
+	public static final int DEFAULT_THREADS = Integer.getInteger("bank.bench.threads",
+			Runtime.getRuntime().availableProcessors());
+	public static final int DEFAULT_OPERATIONS = Integer.getInteger("bank.bench.operations", 1000);
+
+	static final String OWNER = "Benchmark";
+
+	public enum Workload {
+		/** deposit(1) followed by withdraw(1) on one account */
+		DEPOSIT_WITHDRAW,
+		/** transfer of 1 between two accounts, alternating the direction */
+		TRANSFER
+	}
+
+	public enum Contention {
+		CONTENDED, DISJOINT
+	}
+
+	private final Bank bank;
+	private final int threads;
+	private final int operations;
+
+	/**
+	 * @param operations operations per thread
+	 */
+	public ConcurrencyBenchmark(Bank bank, int threads, int operations) {
+		if (threads < 1 || operations < 1)
+			throw new IllegalArgumentException("threads and operations must be positive");
+
+		this.bank = bank;
+		this.threads = threads;
+		this.operations = operations;
+	}
+
+	public ConcurrencyBenchmark(Bank bank) {
+		this(bank, DEFAULT_THREADS, DEFAULT_OPERATIONS);
+	}
+
+	public Result run(Workload workload, Contention contention) throws Exception {
+		// enough money that no transfer can overdraw, even if all go one way
+		double seed = (double) threads * operations;
+
+		int accountsPerThread = workload == Workload.TRANSFER ? 2 : 1;
+		int groups = contention == Contention.CONTENDED ? 1 : threads;
+
+		List<Account[]> accounts = new ArrayList<>(groups);
+		for (int g = 0; g < groups; g++) {
+			Account[] group = new Account[accountsPerThread];
+			for (int i = 0; i < accountsPerThread; i++) {
+				group[i] = bank.getAccount(bank.createAccount(OWNER));
+				group[i].deposit(seed);
+			}
+			accounts.add(group);
+		}
+
+		try {
+			double before = total(accounts);
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Worker>> futures = new ArrayList<>(threads);
+			try {
+				for (int t = 0; t < threads; t++) {
+					Worker worker = new Worker(workload, accounts.get(t % groups), start);
+					futures.add(pool.submit(worker, worker));
+				}
+
+				long begin = System.nanoTime();
+				start.countDown();
+
+				List<Worker> workers = new ArrayList<>(threads);
+				for (Future<Worker> f : futures)
+					workers.add(f.get());
+				long elapsed = System.nanoTime() - begin;
+
+				return new Result(workload, contention, threads, elapsed, workers, before, total(accounts));
+
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			} finally {
+				pool.shutdownNow();
+			}
+
+		} finally {
+			for (Account[] group : accounts) {
+				for (Account account : group)
+					close(account);
+			}
+		}
+	}
+
+	/**
+	 * Total balance of the accounts as stored on the server, cached copies
+	 * could hide money which was created or lost.
+	 */
+	private double total(List<Account[]> accounts) throws IOException {
+		if (bank instanceof CachingBank)
+			((CachingBank) bank).invalidateCache();
+
+		double total = 0;
+		for (Account[] group : accounts) {
+			for (Account account : group)
+				total += bank.getAccount(account.getNumber()).getBalance();
+		}
+		return total;
+	}
+
+	private void close(Account account) {
+		try {
+			double balance = account.getBalance();
+			if (balance > 0)
+				account.withdraw(balance);
+			bank.closeAccount(account.getNumber());
+		} catch (Exception e) {
+			// leave the account open, the result is not affected
+		}
+	}
+
+	private class Worker implements Runnable {
+		private final Workload workload;
+		private final Account[] accounts;
+		private final CountDownLatch start;
+
+		final long[] latencies = new long[operations];
+		int errors;
+		// money deposited minus money withdrawn by the successful operations
+		double net;
+
+		Worker(Workload workload, Account[] accounts, CountDownLatch start) {
+			this.workload = workload;
+			this.accounts = accounts;
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			for (int i = 0; i < operations; i++) {
+				long begin = System.nanoTime();
+				try {
+					execute(i);
+				} catch (Exception e) {
+					errors++;
+				}
+				latencies[i] = System.nanoTime() - begin;
+			}
+		}
+
+		private void execute(int i) throws Exception {
+			if (workload == Workload.TRANSFER) {
+				// alternating, so the balances stay around the seed
+				if (i % 2 == 0)
+					bank.transfer(accounts[0], accounts[1], 1);
+				else
+					bank.transfer(accounts[1], accounts[0], 1);
+			} else {
+				if (i % 2 == 0) {
+					accounts[0].deposit(1);
+					net += 1;
+				} else {
+					accounts[0].withdraw(1);
+					net -= 1;
+				}
+			}
+		}
+	}
+
+	public static class Result {
+		private final Workload workload;
+		private final Contention contention;
+		private final int threads;
+		private final long elapsedNanos;
+		private final long[] latencies;
+		private final int errors;
+		private final double before;
+		private final double after;
+		private final double expected;
+
+		Result(Workload workload, Contention contention, int threads, long elapsedNanos, List<Worker> workers,
+				double before, double after) {
+			this.workload = workload;
+			this.contention = contention;
+			this.threads = threads;
+			this.elapsedNanos = elapsedNanos;
+			this.before = before;
+			this.after = after;
+
+			int count = 0;
+			int errors = 0;
+			double net = 0;
+			for (Worker w : workers) {
+				count += w.latencies.length;
+				errors += w.errors;
+				net += w.net;
+			}
+			this.expected = before + net;
+
+			long[] latencies = new long[count];
+			int pos = 0;
+			for (Worker w : workers) {
+				System.arraycopy(w.latencies, 0, latencies, pos, w.latencies.length);
+				pos += w.latencies.length;
+			}
+			Arrays.sort(latencies);
+
+			this.latencies = latencies;
+			this.errors = errors;
+		}
+
+		public Workload getWorkload() {
+			return workload;
+		}
+
+		public Contention getContention() {
+			return contention;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public int getOperations() {
+			return latencies.length;
+		}
+
+		public int getErrors() {
+			return errors;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * Operations per second over all threads.
+		 */
+		public double getThroughput() {
+			return latencies.length / (elapsedNanos / 1e9);
+		}
+
+		/**
+		 * Latency in ns below which the given percentage of operations
+		 * completed, e.g. 99.9.
+		 */
+		public long getPercentile(double percent) {
+			if (latencies.length == 0)
+				return 0;
+
+			int index = (int) Math.ceil(percent / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+		}
+
+		public long getMaxLatency() {
+			return latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+		}
+
+		public double getBalanceBefore() {
+			return before;
+		}
+
+		public double getBalanceAfter() {
+			return after;
+		}
+
+		/**
+		 * Balance expected after the run, the balance before plus the net
+		 * amount of the successful deposits and withdrawals.
+		 */
+		public double getBalanceExpected() {
+			return expected;
+		}
+
+		/**
+		 * True if no money was created or lost by the run.
+		 */
+		public boolean isConserved() {
+			return Math.abs(expected - after) < 1e-6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"%s/%s, %d threads: %d ops in %.3f s, %.0f ops/s%n"
+							+ "  latency us: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n"
+							+ "  errors: %d, money %s (before %.2f, after %.2f, expected %.2f)",
+					workload, contention, threads, latencies.length, elapsedNanos / 1e9, getThroughput(),
+					getPercentile(50) / 1e3, getPercentile(90) / 1e3, getPercentile(99) / 1e3,
+					getPercentile(99.9) / 1e3, getMaxLatency() / 1e3, errors,
+					isConserved() ? "conserved" : "NOT conserved", before, after, expected);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package bank.gui.tests;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+import bank.Bank;
+import bank.gui.tests.ConcurrencyBenchmark.Contention;
+import bank.gui.tests.ConcurrencyBenchmark.Result;
+import bank.gui.tests.ConcurrencyBenchmark.Workload;
+
+/**
+ * Multi-threaded counterpart of {@link EfficiencyTestDS}: runs every workload
+ * on contended and on disjoint accounts with
+ * {@link ConcurrencyBenchmark#DEFAULT_THREADS} threads (system properties
+ * <code>bank.bench.threads</code> and <code>bank.bench.operations</code>).
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class EfficiencyTestCONPR implements BankTest {
+
+	@Override
+	public String getName() {
+		return "Efficiency Test (CONPR)";
+	}
+
+	@Override
+	public boolean isEnabled(int size) {
+		// works on accounts of its own
+		return true;
+	}
+
+	@Override
+	public void runTests(JFrame context, Bank bank, String currentAccountNumber) throws Exception {
+		ConcurrencyBenchmark benchmark = new ConcurrencyBenchmark(bank);
+
+		StringBuilder msg = new StringBuilder();
+		try {
+			for (Workload workload : Workload.values()) {
+				for (Contention contention : Contention.values()) {
+					Result result = benchmark.run(workload, contention);
+					msg.append(result).append("\n");
+				}
+			}
+		} catch (Exception e) {
+			msg.append("test did throw an exception\n").append(e.getMessage());
+		}
+
+		JOptionPane.showMessageDialog(context, msg.toString(), "Test Result", JOptionPane.INFORMATION_MESSAGE);
+	}
+
+}
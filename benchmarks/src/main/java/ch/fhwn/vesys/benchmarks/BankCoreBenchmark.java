@@ -0,0 +1,101 @@
+package ch.fhwn.vesys.benchmarks;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bank.Account;
+import bank.Bank;
+import bank.BankDriver;
+import bank.InactiveException;
+import bank.OverdrawException;
+
+/**
+ * Operations of the bank core ({@link bank.local.Driver}) at different bank
+ * sizes. The accounts are selected at random, so the lookups are not served
+ * from the CPU caches only. The bank is built again for every iteration, as
+ * the accounts added by {@link #createAccount()} can not be removed (closed
+ * accounts stay in the bank) and would pile up over the whole run otherwise.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankCoreBenchmark {
+
+	// enough that withdraw and transfer never overdraw during a run
+	static final double SEED = 1e12;
+
+	@Param({ "100", "10000", "100000" })
+	int size;
+
+	private Bank bank;
+	private String[] numbers;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException, InactiveException {
+		BankDriver driver = new bank.local.Driver();
+		driver.connect(new String[0]);
+		bank = driver.getBank();
+
+		numbers = new String[size];
+		for (int i = 0; i < size; i++) {
+			numbers[i] = bank.createAccount("owner-" + i);
+			bank.getAccount(numbers[i]).deposit(SEED);
+		}
+	}
+
+	private Account randomAccount() throws IOException {
+		return bank.getAccount(numbers[ThreadLocalRandom.current().nextInt(size)]);
+	}
+
+	@Benchmark
+	public String createAccount() throws IOException {
+		return bank.createAccount("bench");
+	}
+
+	@Benchmark
+	public Account getAccount() throws IOException {
+		return randomAccount();
+	}
+
+	@Benchmark
+	public void deposit() throws IOException, InactiveException {
+		randomAccount().deposit(1);
+	}
+
+	@Benchmark
+	public void withdraw() throws IOException, InactiveException, OverdrawException {
+		randomAccount().withdraw(1);
+	}
+
+	@Benchmark
+	public void transfer() throws IOException, InactiveException, OverdrawException {
+		bank.transfer(randomAccount(), randomAccount(), 1);
+	}
+
+	@Benchmark
+	public Set<String> getAccountNumbers() throws IOException {
+		return bank.getAccountNumbers();
+	}
+
+}
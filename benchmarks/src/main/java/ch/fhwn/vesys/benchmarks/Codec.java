@@ -0,0 +1,100 @@
+package ch.fhwn.vesys.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import bank.commands.CommandCodec;
+
+/**
+ * Candidate encodings of the bank commands, public for the code JMH generates.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public enum Codec {
+
+	/** the <code>serialize</code>/<code>deserialize</code> helpers of the drivers and servers */
+	JAVA_BASE64 {
+		@Override
+		byte[] encode(Object command) throws IOException {
+			return Base64.getEncoder().encode(JAVA.encode(command));
+		}
+
+		@Override
+		Object decode(byte[] data) throws IOException {
+			return JAVA.decode(Base64.getDecoder().decode(data));
+		}
+	},
+
+	/** Java serialization as raw bytes */
+	JAVA {
+		@Override
+		byte[] encode(Object command) throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+				oos.writeObject(command);
+			}
+			return baos.toByteArray();
+		}
+
+		@Override
+		Object decode(byte[] data) throws IOException {
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+				return ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+	},
+
+	/** {@link CommandCodec}, used by the WebSocket and JMS transports */
+	BINARY {
+		@Override
+		byte[] encode(Object command) throws IOException {
+			return CommandCodec.encode(command);
+		}
+
+		@Override
+		Object decode(byte[] data) throws IOException {
+			return CommandCodec.decode(data);
+		}
+	},
+
+	/** the fields of the command as JSON, tagged with the simple class name */
+	JSON {
+		private static final String PACKAGE = "bank.commands.";
+
+		@Override
+		byte[] encode(Object command) throws IOException {
+			JsonObject json = new JsonObject();
+			json.addProperty("type", command.getClass().getSimpleName());
+			json.add("command", GSON.toJsonTree(command));
+			return GSON.toJson(json).getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		Object decode(byte[] data) throws IOException {
+			JsonObject json = GSON.fromJson(new String(data, StandardCharsets.UTF_8), JsonObject.class);
+			try {
+				return GSON.fromJson(json.get("command"), Class.forName(PACKAGE + json.get("type").getAsString()));
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+	};
+
+	private static final Gson GSON = new Gson();
+
+	abstract byte[] encode(Object command) throws IOException;
+
+	abstract Object decode(byte[] data) throws IOException;
+
+}
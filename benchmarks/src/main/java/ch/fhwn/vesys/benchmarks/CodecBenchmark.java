@@ -0,0 +1,234 @@
+package ch.fhwn.vesys.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import bank.commands.CloseAccountCmd;
+import bank.commands.DepositCmd;
+import bank.commands.GetAccountCmd;
+import bank.commands.GetAccountNumbersCmd;
+import bank.commands.GetChangesSinceCmd;
+import bank.commands.NewAccountCmd;
+import bank.commands.SubscribeCmd;
+import bank.commands.TransferCmd;
+import bank.commands.WithdrawCmd;
+
+/**
+ * Encoding and decoding of every command with every {@link Codec}. The
+ * commands are filled like the responses of the servers; the listings hold
+ * {@value #LISTING} accounts.
+ *
+ * Run with <code>-prof gc</code> for the allocation per operation
+ * (<code>gc.alloc.rate.norm</code>). The encoded sizes are printed by
+ * {@link #main(String[])}.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	static final int LISTING = 100;
+
+	private static final Gson GSON = new Gson();
+
+	@Param({ "JAVA_BASE64", "JAVA", "BINARY", "JSON" })
+	Codec codec;
+
+	@Param({ "NewAccountCmd", "GetAccountCmd", "GetAccountNumbersCmd", "DepositCmd", "WithdrawCmd",
+			"CloseAccountCmd", "TransferCmd", "SubscribeCmd", "GetChangesSinceCmd" })
+	String command;
+
+	private Object sample;
+	private byte[] encoded;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		sample = sample(command);
+		encoded = codec.encode(sample);
+		checkRoundTrip(codec, sample);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return codec.encode(sample);
+	}
+
+	@Benchmark
+	public Object decode() throws IOException {
+		return codec.decode(encoded);
+	}
+
+	static Object sample(String command) {
+		String number = UUID.randomUUID().toString();
+		String other = UUID.randomUUID().toString();
+
+		switch (command) {
+		case "NewAccountCmd": {
+			NewAccountCmd cmd = new NewAccountCmd("Hans Muster");
+			cmd.setAccountNumber(number);
+			return cmd;
+		}
+		case "GetAccountCmd":
+			return account(number);
+		case "GetAccountNumbersCmd": {
+			GetAccountNumbersCmd cmd = new GetAccountNumbersCmd();
+			cmd.setAccounts(numbers(LISTING));
+			return cmd;
+		}
+		case "DepositCmd": {
+			DepositCmd cmd = new DepositCmd(number, 100);
+			cmd.setNewBalance(1100);
+			return cmd;
+		}
+		case "WithdrawCmd": {
+			WithdrawCmd cmd = new WithdrawCmd(number, 100);
+			cmd.setNewBalance(900);
+			return cmd;
+		}
+		case "CloseAccountCmd": {
+			CloseAccountCmd cmd = new CloseAccountCmd(number);
+			cmd.setResult(true);
+			return cmd;
+		}
+		case "TransferCmd": {
+			TransferCmd cmd = new TransferCmd(number, other, 100);
+			cmd.setBalanceFromAccount(900);
+			cmd.setBalanceToAccount(1100);
+			return cmd;
+		}
+		case "SubscribeCmd":
+			return new SubscribeCmd(numbers(LISTING), null);
+		case "GetChangesSinceCmd": {
+			GetChangesSinceCmd cmd = new GetChangesSinceCmd(7, 41);
+			cmd.setHeadVersion(41 + LISTING);
+			List<GetAccountCmd> accounts = new ArrayList<>(LISTING);
+			for (int i = 0; i < LISTING; i++)
+				accounts.add(account(UUID.randomUUID().toString()));
+			cmd.setAccounts(accounts);
+			return cmd;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown command " + command);
+		}
+	}
+
+	private static GetAccountCmd account(String number) {
+		GetAccountCmd cmd = new GetAccountCmd(number);
+		cmd.setBalance(1000);
+		cmd.setActive(true);
+		cmd.setOwner("Hans Muster");
+		cmd.setAccountFound(true);
+		return cmd;
+	}
+
+	private static Set<String> numbers(int count) {
+		Set<String> numbers = new HashSet<>();
+		for (int i = 0; i < count; i++)
+			numbers.add(UUID.randomUUID().toString());
+		return numbers;
+	}
+
+	/**
+	 * Fails if the decoded command differs from the encoded one. The commands
+	 * have no equals(), so their fields are compared as JSON trees.
+	 */
+	static void checkRoundTrip(Codec codec, Object command) throws IOException {
+		JsonElement expected = tree(command);
+		JsonElement actual = tree(codec.decode(codec.encode(command)));
+		if (!expected.equals(actual))
+			throw new IllegalStateException(codec + " does not round-trip " + command.getClass().getSimpleName()
+					+ ": " + expected + " decoded as " + actual);
+	}
+
+	/**
+	 * The fields of the command as JSON tree. The sets of account numbers are
+	 * not ordered, so arrays of plain values are sorted.
+	 */
+	private static JsonElement tree(Object command) {
+		return sorted(GSON.toJsonTree(command));
+	}
+
+	private static JsonElement sorted(JsonElement json) {
+		if (json.isJsonObject()) {
+			JsonObject object = new JsonObject();
+			for (Map.Entry<String, JsonElement> e : json.getAsJsonObject().entrySet())
+				object.add(e.getKey(), sorted(e.getValue()));
+			return object;
+		}
+
+		if (json.isJsonArray()) {
+			List<JsonElement> elements = new ArrayList<>();
+			boolean plain = true;
+			for (JsonElement element : json.getAsJsonArray()) {
+				elements.add(sorted(element));
+				plain &= element.isJsonPrimitive();
+			}
+			if (plain)
+				elements.sort(Comparator.comparing(JsonElement::toString));
+
+			JsonArray array = new JsonArray();
+			for (JsonElement element : elements)
+				array.add(element);
+			return array;
+		}
+
+		return json;
+	}
+
+	/**
+	 * Prints the encoded size in bytes of every command with every codec and
+	 * checks that every codec decodes what it encoded.
+	 */
+	public static void main(String[] args) throws Exception {
+		// the commands of the @Param, so the list is kept in one place
+		String[] commands = CodecBenchmark.class.getDeclaredField("command").getAnnotation(Param.class).value();
+
+		StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%-22s", "command"));
+		for (Codec codec : Codec.values())
+			header.append(String.format(Locale.ROOT, " %12s", codec));
+		System.out.println(header);
+
+		for (String command : commands) {
+			Object sample = sample(command);
+			StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-22s", command));
+			for (Codec codec : Codec.values()) {
+				checkRoundTrip(codec, sample);
+				line.append(String.format(Locale.ROOT, " %12d", codec.encode(sample).length));
+			}
+			System.out.println(line);
+		}
+	}
+
+}
@@ -0,0 +1,410 @@
+package ch.fhwn.vesys.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import bank.Account;
+import bank.AccountCache;
+import bank.Bank;
+import bank.BankDriver;
+
+/**
+ * Drives any {@link BankDriver} with a number of virtual clients and a mix
+ * of operations and reports the latency percentiles per operation.
+ *
+ * <pre>
+ * Usage: java ch.fhwn.vesys.benchmarks.LoadGenerator [options] &lt;classname&gt; [driver args]
+ *   --clients 8          virtual clients, each with a connection of its own
+ *   --shared             all clients use one connection (e.g. for bank.local.Driver)
+ *   --accounts 100       accounts created before the run
+ *   --mix deposit=30,withdraw=20,transfer=20,getAccount=25,create=3,close=2
+ *   --rate 0             total operations per second, 0 runs closed-loop
+ *   --warmup 5           seconds not recorded
+ *   --duration 30        seconds recorded
+ *   --out dir            writes the percentile distribution of each operation (.hgrm)
+ * </pre>
+ *
+ * Closed-loop, every client sends its next operation as soon as the last
+ * one completed; the latency is the service time. Open-loop, every client
+ * sends at a fixed rate and the latency is measured from the time the
+ * operation was scheduled, not from when it was actually sent. A stalled
+ * server therefore shows up in the percentiles instead of silently lowering
+ * the load (coordinated omission).
+ *
+ * The remote drivers serve getAccount from their {@link AccountCache} for
+ * <code>bank.cache.ttl</code> ms (default 1000), so getAccount mostly
+ * measures cache hits. Run with <code>-Dbank.cache.ttl=0</code> to send every
+ * read to the server. The time to live is printed with the results.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public final class LoadGenerator {
+
+	// enough that withdraw and transfer never overdraw during a run
+	static final double SEED = 1e12;
+
+	enum Operation {
+		DEPOSIT("deposit"), WITHDRAW("withdraw"), TRANSFER("transfer"), GET_ACCOUNT("getAccount"), CREATE(
+				"create"), CLOSE("close");
+
+		final String label;
+
+		Operation(String label) {
+			this.label = label;
+		}
+
+		static Operation of(String label) {
+			for (Operation op : values()) {
+				if (op.label.equals(label))
+					return op;
+			}
+			throw new IllegalArgumentException("Unknown operation " + label);
+		}
+	}
+
+	private int clients = 8;
+	private boolean shared = false;
+	private int accounts = 100;
+	private Map<Operation, Integer> mix = parseMix("deposit=30,withdraw=20,transfer=20,getAccount=25,create=3,close=2");
+	private double rate = 0;
+	private int warmup = 5;
+	private int duration = 30;
+	private File out;
+
+	private String driverClass;
+	private String[] driverArgs;
+
+	private LoadGenerator() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("--"); i++) {
+				switch (args[i]) {
+				case "--clients":
+					generator.clients = Integer.parseInt(args[++i]);
+					break;
+				case "--shared":
+					generator.shared = true;
+					break;
+				case "--accounts":
+					generator.accounts = Integer.parseInt(args[++i]);
+					break;
+				case "--mix":
+					generator.mix = parseMix(args[++i]);
+					break;
+				case "--rate":
+					generator.rate = Double.parseDouble(args[++i]);
+					break;
+				case "--warmup":
+					generator.warmup = Integer.parseInt(args[++i]);
+					break;
+				case "--duration":
+					generator.duration = Integer.parseInt(args[++i]);
+					break;
+				case "--out":
+					generator.out = new File(args[++i]);
+					break;
+				default:
+					usage();
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage();
+		}
+		if (i == args.length || generator.clients < 1 || generator.accounts < 2)
+			usage();
+
+		generator.driverClass = args[i];
+		generator.driverArgs = new String[args.length - i - 1];
+		System.arraycopy(args, i + 1, generator.driverArgs, 0, generator.driverArgs.length);
+
+		boolean complete = generator.run();
+
+		// some drivers keep non-daemon threads
+		System.exit(complete ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java " + LoadGenerator.class.getName()
+				+ " [--clients n] [--shared] [--accounts n] [--mix op=weight,...] [--rate ops/s]"
+				+ " [--warmup s] [--duration s] [--out dir] <class> [args]");
+		System.exit(2);
+	}
+
+	static Map<Operation, Integer> parseMix(String spec) {
+		Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+		for (String part : spec.split(",")) {
+			String[] kv = part.trim().split("=");
+			if (kv.length != 2)
+				throw new IllegalArgumentException("Illegal mix entry " + part);
+
+			int weight = Integer.parseInt(kv[1].trim());
+			if (weight < 0)
+				throw new IllegalArgumentException("Negative weight " + part);
+			if (weight > 0)
+				mix.put(Operation.of(kv[0].trim()), weight);
+		}
+		if (mix.isEmpty())
+			throw new IllegalArgumentException("Empty mix " + spec);
+		return mix;
+	}
+
+	private BankDriver connect() throws Exception {
+		BankDriver driver = (BankDriver) Class.forName(driverClass).newInstance();
+		driver.connect(driverArgs);
+		return driver;
+	}
+
+	/**
+	 * Runs the load and prints the report.
+	 *
+	 * @return false if a client died before the end of the run
+	 */
+	private boolean run() throws Exception {
+		List<BankDriver> drivers = new ArrayList<>();
+		drivers.add(connect());
+		for (int c = 1; c < clients; c++)
+			drivers.add(shared ? drivers.get(0) : connect());
+
+		Bank setup = drivers.get(0).getBank();
+		String[] numbers = new String[accounts];
+		for (int a = 0; a < accounts; a++) {
+			numbers[a] = setup.createAccount("load-" + a);
+			setup.getAccount(numbers[a]).deposit(SEED);
+		}
+
+		long now = System.nanoTime();
+		long measureStart = now + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+
+		// per client interval between two scheduled operations, 0 for closed-loop
+		long interval = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+
+		List<Client> workers = new ArrayList<>(clients);
+		for (int c = 0; c < clients; c++) {
+			// the clients of an open-loop run are evenly spread over the interval
+			Client client = new Client(drivers.get(c).getBank(), numbers, now + c * interval / clients, interval,
+					measureStart, end);
+			workers.add(client);
+			client.start();
+		}
+
+		for (Client client : workers)
+			client.join();
+
+		report(workers);
+
+		for (BankDriver driver : shared ? drivers.subList(0, 1) : drivers)
+			driver.disconnect();
+
+		boolean complete = true;
+		for (int c = 0; c < workers.size(); c++) {
+			Throwable failure = workers.get(c).failure;
+			if (failure != null) {
+				System.err.println("client " + c + " died, its results are incomplete: " + failure);
+				complete = false;
+			}
+		}
+		return complete;
+	}
+
+	private void report(List<Client> workers) throws IOException {
+		if (out != null)
+			out.mkdirs();
+
+		System.out.println(String.format(Locale.ROOT, "%s, %d clients%s, %s, %d s, cache ttl %d ms", driverClass,
+				clients, shared ? " (shared connection)" : "",
+				rate > 0 ? "open-loop " + rate + " ops/s" : "closed-loop", duration, AccountCache.DEFAULT_TTL));
+		System.out.println(String.format(Locale.ROOT, "%-11s %9s %7s %10s %10s %10s %10s %10s %10s %10s",
+				"operation", "count", "errors", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "p99.99 us",
+				"max us"));
+
+		Histogram total = new Histogram(3);
+		for (Operation op : mix.keySet()) {
+			Histogram histogram = new Histogram(3);
+			long errors = 0;
+			for (Client client : workers) {
+				histogram.add(client.histograms.get(op));
+				errors += client.errors.get(op)[0];
+			}
+			total.add(histogram);
+
+			print(op.label, histogram, errors);
+
+			if (out != null) {
+				try (PrintStream s = new PrintStream(new FileOutputStream(new File(out, op.label + ".hgrm")))) {
+					histogram.outputPercentileDistribution(s, 1000.0);
+				}
+			}
+		}
+
+		long errors = 0;
+		for (Client client : workers) {
+			for (long[] e : client.errors.values())
+				errors += e[0];
+		}
+		print("total", total, errors);
+	}
+
+	private void print(String label, Histogram h, long errors) {
+		System.out.println(String.format(Locale.ROOT, "%-11s %9d %7d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+				label, h.getTotalCount(), errors, h.getTotalCount() / (double) duration,
+				h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3, h.getValueAtPercentile(99) / 1e3,
+				h.getValueAtPercentile(99.9) / 1e3, h.getValueAtPercentile(99.99) / 1e3, h.getMaxValue() / 1e3));
+	}
+
+	private class Client extends Thread {
+		private final Bank bank;
+		private final String[] numbers;
+		private final long interval;
+		private final long measureStart;
+		private final long end;
+
+		private final Operation[] operations;
+		private final int[] weights;
+		private final int totalWeight;
+
+		// accounts created by this client, the ones close picks from
+		private final Deque<String> created = new ArrayDeque<>();
+
+		final Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+		final Map<Operation, long[]> errors = new EnumMap<>(Operation.class);
+
+		private long next;
+
+		// set if the client died before the end of the run
+		volatile Throwable failure;
+
+		Client(Bank bank, String[] numbers, long start, long interval, long measureStart, long end) {
+			this.bank = bank;
+			this.numbers = numbers;
+			this.next = start;
+			this.interval = interval;
+			this.measureStart = measureStart;
+			this.end = end;
+
+			operations = mix.keySet().toArray(new Operation[0]);
+			weights = new int[operations.length];
+			int sum = 0;
+			for (int i = 0; i < operations.length; i++) {
+				sum += mix.get(operations[i]);
+				weights[i] = sum;
+				histograms.put(operations[i], new Histogram(3));
+				errors.put(operations[i], new long[1]);
+			}
+			totalWeight = sum;
+
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				load();
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+
+		private void load() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+
+			while (true) {
+				int r = random.nextInt(totalWeight);
+				int i = 0;
+				while (weights[i] <= r)
+					i++;
+				Operation op = operations[i];
+
+				// close needs an empty account of this client, it is created
+				// before the operation is scheduled so it is not timed
+				if (op == Operation.CLOSE && created.isEmpty()) {
+					try {
+						created.push(bank.createAccount("load"));
+					} catch (Exception e) {
+						// the close fails and is counted as error
+					}
+				}
+
+				long scheduled;
+				if (interval > 0) {
+					// open-loop: wait for the scheduled time, but never skip an operation
+					scheduled = next;
+					next += interval;
+					// parkNanos may return early (spuriously or interrupted), so
+					// park again until the scheduled time is really reached
+					long wait;
+					while ((wait = scheduled - System.nanoTime()) > 0)
+						LockSupport.parkNanos(wait);
+				} else {
+					scheduled = System.nanoTime();
+				}
+				if (scheduled >= end)
+					break;
+
+				boolean failed = false;
+				try {
+					execute(op, random);
+				} catch (Exception e) {
+					failed = true;
+				}
+				long latency = System.nanoTime() - scheduled;
+
+				if (scheduled >= measureStart) {
+					histograms.get(op).recordValue(latency);
+					if (failed)
+						errors.get(op)[0]++;
+				}
+			}
+		}
+
+		private Account random(ThreadLocalRandom random) throws IOException {
+			return bank.getAccount(numbers[random.nextInt(numbers.length)]);
+		}
+
+		private void execute(Operation op, ThreadLocalRandom random) throws Exception {
+			switch (op) {
+			case DEPOSIT:
+				random(random).deposit(1);
+				break;
+			case WITHDRAW:
+				random(random).withdraw(1);
+				break;
+			case TRANSFER:
+				bank.transfer(random(random), random(random), 1);
+				break;
+			case GET_ACCOUNT:
+				random(random);
+				break;
+			case CREATE:
+				created.push(bank.createAccount("load"));
+				break;
+			case CLOSE:
+				// accounts of this client are empty and can be closed
+				bank.closeAccount(created.pop());
+				break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package ch.fhwn.vesys.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.glassfish.tyrus.server.Server;
+
+import ch.fhwn.vesys.websockets.server.BankServerEndpoint;
+
+/**
+ * Starts the bank servers in the benchmark JVM on loopback.
+ *
+ * The socket, HTTP and JMS servers share class names (e.g.
+ * <code>server.connectivity.BankServer</code>), so each of them is loaded from
+ * the directory the build compiled it to by a class loader of its own. Their
+ * <code>server.Main</code> runs in a daemon thread until the JVM exits, which
+ * is fine for the forked benchmark JVMs.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+final class Servers {
+
+	static final String HOST = "localhost";
+
+	static final int SOCKETS_PORT = 1337;
+	static final int HTTP_PORT = 1337;
+	static final int WEBSOCKETS_PORT = 8890;
+	static final int JMS_PORT = 5445;
+
+	private static final long STARTUP_TIMEOUT = 30000;
+
+	private Servers() {
+	}
+
+	static void startSockets() throws Exception {
+		startIsolated("sockets", SOCKETS_PORT);
+	}
+
+	static void startHttp() throws Exception {
+		startIsolated("http", HTTP_PORT);
+	}
+
+	static void startJms() throws Exception {
+		startIsolated("jms", JMS_PORT, "--embedded", HOST + ":" + JMS_PORT);
+	}
+
+	static Server startWebSockets() throws Exception {
+		Server server = new Server(HOST, WEBSOCKETS_PORT, "/server", null, BankServerEndpoint.class);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Runs <code>server.Main</code> of the given server directory and waits
+	 * until it accepts connections.
+	 */
+	private static void startIsolated(String name, int port, String... args) throws Exception {
+		File dir = new File(serversDir(), name);
+		if (!dir.isDirectory())
+			throw new IllegalStateException("Server classes not found in " + dir + ", build the module first");
+
+		// the server classes first, the dependencies (e.g. HornetQ) from the class path
+		List<URL> urls = new ArrayList<>();
+		urls.add(dir.toURI().toURL());
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+			urls.add(new File(entry).toURI().toURL());
+
+		ClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+
+		Thread thread = new Thread(() -> {
+			try {
+				loader.loadClass("server.Main").getMethod("main", String[].class).invoke(null, (Object) args);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}, name + "-server");
+		thread.setContextClassLoader(loader);
+		thread.setDaemon(true);
+		thread.start();
+
+		awaitPort(port);
+	}
+
+	private static File serversDir() throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Servers.class.getResourceAsStream("/servers.properties")) {
+			if (in != null)
+				properties.load(in);
+		}
+		return new File(System.getProperty("bank.bench.servers", properties.getProperty("servers.dir", "target/servers")));
+	}
+
+	private static void awaitPort(int port) throws InterruptedException, IOException {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (true) {
+			try (Socket s = new Socket()) {
+				s.connect(new InetSocketAddress(HOST, port), 1000);
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw new IOException("Server on port " + port + " did not start", e);
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Discards the console output of the servers and drivers, which log every
+	 * request. Returns the original stream.
+	 */
+	static PrintStream silence() {
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		return out;
+	}
+
+}
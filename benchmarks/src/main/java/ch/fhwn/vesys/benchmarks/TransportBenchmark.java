@@ -0,0 +1,131 @@
+package ch.fhwn.vesys.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.tyrus.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bank.Account;
+import bank.Bank;
+import bank.BankDriver;
+import bank.InactiveException;
+import bank.OverdrawException;
+
+/**
+ * Round trips through the remote drivers. Every trial starts the server of
+ * the transport in the forked JVM on loopback and connects the driver to it.
+ *
+ * The client caches are disabled (<code>bank.cache.ttl=0</code>), so
+ * getAccount measures a round trip as well. The console output of servers
+ * and drivers is discarded during the trial.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dbank.cache.ttl=0")
+public class TransportBenchmark {
+
+	@Param({ "sockets", "http", "websockets", "jms" })
+	String transport;
+
+	@Param({ "100" })
+	int accounts;
+
+	private BankDriver driver;
+	private Bank bank;
+	private String[] numbers;
+
+	private Server webSocketServer;
+	private PrintStream out;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		out = Servers.silence();
+
+		switch (transport) {
+		case "sockets":
+			Servers.startSockets();
+			driver = new bank.sockets.Driver();
+			driver.connect(new String[] { Servers.HOST, String.valueOf(Servers.SOCKETS_PORT) });
+			break;
+		case "http":
+			Servers.startHttp();
+			driver = new bank.http.Driver();
+			driver.connect(new String[] { Servers.HOST, String.valueOf(Servers.HTTP_PORT) });
+			break;
+		case "websockets":
+			webSocketServer = Servers.startWebSockets();
+			driver = new ch.fhwn.vesys.websockets.client.BankDriver();
+			driver.connect(new String[] { Servers.HOST, String.valueOf(Servers.WEBSOCKETS_PORT) });
+			break;
+		case "jms":
+			Servers.startJms();
+			driver = new bank.jms.Driver();
+			driver.connect(new String[] { Servers.HOST, String.valueOf(Servers.JMS_PORT) });
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown transport " + transport);
+		}
+
+		bank = driver.getBank();
+		numbers = new String[accounts];
+		for (int i = 0; i < accounts; i++) {
+			numbers[i] = bank.createAccount("owner-" + i);
+			bank.getAccount(numbers[i]).deposit(BankCoreBenchmark.SEED);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		driver.disconnect();
+		if (webSocketServer != null)
+			webSocketServer.stop();
+		System.setOut(out);
+	}
+
+	private Account randomAccount() throws IOException {
+		return bank.getAccount(numbers[ThreadLocalRandom.current().nextInt(accounts)]);
+	}
+
+	@Benchmark
+	public Account getAccount() throws IOException {
+		return randomAccount();
+	}
+
+	@Benchmark
+	public void deposit() throws IOException, InactiveException {
+		randomAccount().deposit(1);
+	}
+
+	@Benchmark
+	public void transfer() throws IOException, InactiveException, OverdrawException {
+		bank.transfer(randomAccount(), randomAccount(), 1);
+	}
+
+	@Benchmark
+	public Set<String> getAccountNumbers() throws IOException {
+		return bank.getAccountNumbers();
+	}
+
+}
@@ -12,6 +12,10 @@ public class TransferCmd implements Serializable {
 	private double balanceFromAccount;
 	private double balanceToAccount;
 
+	// versions of the accounts after the transfer
+	private long versionFromAccount;
+	private long versionToAccount;
+
 	private boolean error = false;
 	private String errMsg = null;
 
@@ -31,6 +35,22 @@ public class TransferCmd implements Serializable {
 		this.balanceToAccount = balanceToAccount;
 	}
 
+	public long getVersionFromAccount() {
+		return versionFromAccount;
+	}
+
+	public void setVersionFromAccount(long versionFromAccount) {
+		this.versionFromAccount = versionFromAccount;
+	}
+
+	public long getVersionToAccount() {
+		return versionToAccount;
+	}
+
+	public void setVersionToAccount(long versionToAccount) {
+		this.versionToAccount = versionToAccount;
+	}
+
 	public String getErrMsg() {
 		return errMsg;
 	}
@@ -8,6 +8,7 @@ public class WithdrawCmd implements Serializable {
 	
 	private double amount;
 	private double newBalance;
+	private long newVersion; // version of the account after the change
 	private String accountNr;
 
 	// exception handling
@@ -35,6 +36,14 @@ public class WithdrawCmd implements Serializable {
 		this.newBalance = newBalance;
 	}
 
+	public long getNewVersion() {
+		return newVersion;
+	}
+
+	public void setNewVersion(long newVersion) {
+		this.newVersion = newVersion;
+	}
+
 	public String getAccountNr() {
 		return accountNr;
 	}
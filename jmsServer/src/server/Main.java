@@ -1,11 +1,38 @@
 package server;
 
+import java.util.Arrays;
+
 import server.connectivity.BankServer;
+import server.connectivity.EmbeddedBroker;
 
 public class Main {
 
-	public static void main(String[] args) {
-		new BankServer(); // start bank server
+	/**
+	 * Usage: java server.Main [consumers] [--embedded [host:port...]]
+	 *
+	 * With --embedded an in-VM broker is started in the same JVM, optionally
+	 * accepting TCP connections on the given addresses. Otherwise the broker
+	 * is looked up over JNDI on localhost:1099.
+	 */
+	public static void main(String[] args) throws Exception {
+		int consumers = BankServer.DEFAULT_CONSUMERS;
+		int i = 0;
+
+		if (i < args.length && !args[i].startsWith("--"))
+			consumers = Integer.parseInt(args[i++]);
+
+		if (i < args.length && args[i].equals("--embedded")) {
+			String[] acceptors = Arrays.copyOfRange(args, i + 1, args.length);
+
+			EmbeddedBroker broker = new EmbeddedBroker(acceptors);
+			broker.start();
+
+			System.out.println("Embedded broker started, TCP acceptors: " + Arrays.toString(acceptors));
+
+			new BankServer(consumers, broker); // start bank server on embedded broker
+		} else {
+			new BankServer(consumers); // start bank server
+		}
 	}
 
 }
@@ -6,14 +6,17 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.jms.BytesMessage;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSConsumer;
 import javax.jms.JMSContext;
@@ -28,9 +31,11 @@ import javax.naming.NamingException;
 import bank.InactiveException;
 import bank.OverdrawException;
 import bank.commands.CloseAccountCmd;
+import bank.commands.CommandCodec;
 import bank.commands.DepositCmd;
 import bank.commands.GetAccountCmd;
 import bank.commands.GetAccountNumbersCmd;
+import bank.commands.GetChangesSinceCmd;
 import bank.commands.NewAccountCmd;
 import bank.commands.TransferCmd;
 import bank.commands.WithdrawCmd;
@@ -38,30 +43,73 @@ import bank.commands.WithdrawCmd;
 /**
  * This class acts as the main bank server.
  *
+ * Requests are consumed from the BANK queue by a pool of consumers, each with
+ * its own JMSContext and producer. The bank is thread-safe, so commands are
+ * executed in parallel. Commands on the same account keep their order if the
+ * clients send them within the same message group (JMSXGroupID set to the
+ * account number), since the broker then delivers a group to one consumer
+ * only.
+ *
  * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
  * @author Hoang Tran <hoang.tran@students.fhnw.ch>
  */
 public class BankServer {
 
+	public static final int DEFAULT_CONSUMERS = Runtime.getRuntime().availableProcessors();
+
+	static final String TRANSPORT = "jms";
+
+	// window in ms and maximal size of a batch of change notifications
+	private static final long NOTIFICATION_WINDOW = Long.getLong("bank.notification.window", 50);
+	private static final int NOTIFICATION_BATCH_SIZE = Integer.getInteger("bank.notification.batch", 1000);
+
 	private Bank bank;
+	private final CommandMetrics metrics = new CommandMetrics(TRANSPORT);
 	private static ConnectionFactory factory;
-	private static Topic topic;
+	private static NotificationPublisher publisher;
+
+	private final int consumers;
 
+	/**
+	 * Starts the server with the JMS resources of the broker on localhost:1099.
+	 */
 	public BankServer() {
+		this(DEFAULT_CONSUMERS);
+	}
+
+	/**
+	 * Starts the server with the JMS resources of the broker on localhost:1099.
+	 */
+	public BankServer(int consumers) {
+		this(consumers, (ConnectionFactory) lookup("ConnectionFactory"), (Queue) lookup("/queue/BANK"),
+				(Topic) lookup("/topic/BANK"));
+	}
+
+	/**
+	 * Starts the server with the JMS resources of the given embedded broker.
+	 * The consumers connect in-VM and therefore without a TCP hop.
+	 */
+	public BankServer(int consumers, EmbeddedBroker broker) {
+		this(consumers, broker.getConnectionFactory(), broker.getQueue(), broker.getTopic());
+	}
+
+	public BankServer(int consumers, ConnectionFactory factory, Queue queue, Topic topic) {
+		if (consumers < 1)
+			throw new IllegalArgumentException("At least one consumer is required");
+
+		this.consumers = consumers;
+
 		bank = new Bank();
 
 		System.out.println("JMS BankServer started");
 
-		handleRequest();
+		handleRequests(factory, queue, topic);
 	}
 
 	/**
-	 * Processes requests send by clients.
-	 * 
-	 * @throws NamingException
+	 * Looks up a JMS resource over JNDI.
 	 */
-	private void handleRequest() {
-
+	private static Object lookup(String name) {
 		try {
 			Hashtable<String, String> properties = new Hashtable<>();
 			properties.put(Context.INITIAL_CONTEXT_FACTORY, "org.jnp.interfaces.NamingContextFactory");
@@ -69,66 +117,112 @@ public class BankServer {
 			properties.put("queue.BANK", "bank.BANK");
 			properties.put("topic.BANK.LISTENER", "bank.BANK.LISTENER");
 
-			final Context jndiContext = new InitialContext(properties);
-			factory = (ConnectionFactory) jndiContext.lookup("ConnectionFactory");
-			final Queue queue = (Queue) jndiContext.lookup("/queue/BANK");
-			topic = (Topic) jndiContext.lookup("/topic/BANK");
-
-			try (JMSContext context = factory.createContext()) {
+			return new InitialContext(properties).lookup(name);
 
-				JMSConsumer consumer = context.createConsumer(queue);
-				JMSProducer sender = context.createProducer();
-
-				System.out.println("JMS service running...");
+		} catch (NamingException e) {
+			throw new IllegalStateException("JMS resource " + name + " could not be looked up", e);
+		}
+	}
 
-				while (true) {
-					Message req = consumer.receive();
-					String message = req.getBody(String.class);
+	/**
+	 * Starts the consumer pool and waits until all consumers have stopped.
+	 */
+	private void handleRequests(ConnectionFactory factory, Queue queue, Topic topic) {
+		BankServer.factory = factory;
+		publisher = new NotificationPublisher(factory, topic, this::ownerOf, NOTIFICATION_WINDOW,
+				NOTIFICATION_BATCH_SIZE);
 
-					// transform to command and execute
-					Object command = deserialize(message);
+		try {
+			Thread[] workers = new Thread[consumers];
+			for (int i = 0; i < consumers; i++) {
+				workers[i] = new Thread(() -> consume(queue), "bank-consumer-" + i);
+				workers[i].start();
+			}
 
-					Serializable responseCommand = null;
+			System.out.println("JMS service running with " + consumers + " consumers...");
 
-					if (command instanceof NewAccountCmd) {
-						responseCommand = handleNewAccountCommand((NewAccountCmd) command);
+			for (Thread worker : workers)
+				worker.join();
 
-						sendUpdate(((NewAccountCmd) responseCommand).getAccountNumber());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			publisher.close();
+		}
 
-					} else if (command instanceof GetAccountCmd) {
-						responseCommand = handleGetAccountCommand((GetAccountCmd) command);
+	}
 
-					} else if (command instanceof GetAccountNumbersCmd) {
-						responseCommand = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
+	/**
+	 * Processes requests send by clients. Each consumer uses its own context,
+	 * since a JMSContext must not be shared between threads.
+	 */
+	private void consume(Queue queue) {
 
-					} else if (command instanceof DepositCmd) {
-						responseCommand = handleDepositCommand((DepositCmd) command);
+		try (JMSContext context = factory.createContext()) {
 
-						sendUpdate(((WithdrawCmd) responseCommand).getAccountNr());
-					} else if (command instanceof WithdrawCmd) {
-						responseCommand = handleWithdrawCommand((WithdrawCmd) command);
+			JMSConsumer consumer = context.createConsumer(queue);
+			JMSProducer sender = context.createProducer();
 
-						sendUpdate(((WithdrawCmd) responseCommand).getAccountNr());
+			while (true) {
+				Message req = consumer.receive();
+				if (req == null)
+					break; // context has been closed
 
-					} else if (command instanceof CloseAccountCmd) {
-						responseCommand = handleCloseAccountCommand((CloseAccountCmd) command);
+				// the JMSTimestamp is taken from the clock of the client, so the
+				// time in the broker can not be told apart from clock skew
+				long arrival = System.nanoTime();
+				StageEvent accept = StageEvent.begin(TRANSPORT, StageEvent.ACCEPT);
 
-						sendUpdate(((CloseAccountCmd) responseCommand).getAccountNr());
+				try {
+					// answer in the encoding of the request, binary or Base64 text
+					boolean binary = req instanceof BytesMessage;
+					accept.end(null, 0);
 
-					} else if (command instanceof TransferCmd) {
-						responseCommand = handleTransferCommand((TransferCmd) command);
+					StageEvent read = StageEvent.begin(TRANSPORT, StageEvent.READ);
+					byte[] data = binary ? req.getBody(byte[].class) : null;
+					String text = binary ? null : req.getBody(String.class);
+					int length = binary ? data.length : text.length();
+					read.end(null, length);
 
-						sendUpdate(((TransferCmd) responseCommand).getFromAccountNr());
-						sendUpdate(((TransferCmd) responseCommand).getToAccountNr());
+					// transform to command and execute
+					StageEvent decode = StageEvent.begin(TRANSPORT, StageEvent.DESERIALIZE);
+					Object command = binary ? CommandCodec.decode(data) : deserialize(text);
+					decode.end(command, length);
+
+					long start = metrics.started(command, arrival);
+					StageEvent dispatch = StageEvent.begin(TRANSPORT, StageEvent.DISPATCH);
+					Serializable responseCommand;
+					try {
+						responseCommand = handleCommand(command);
+					} catch (IOException | RuntimeException e) {
+						metrics.failed(command, start, e);
+						throw e;
 					}
-
-					// send answer to client
-					sender.send(req.getJMSReplyTo(), serialize(responseCommand));
+					dispatch.end(responseCommand, 0);
+					metrics.completed(command, start, responseCommand);
+
+					// send answer to client, the correlation id lets the client match the response
+					String correlationId = req.getJMSCorrelationID() != null ? req.getJMSCorrelationID()
+							: req.getJMSMessageID();
+					sender.setJMSCorrelationID(correlationId);
+
+					StageEvent encode = StageEvent.begin(TRANSPORT, StageEvent.SERIALIZE);
+					byte[] response = binary ? CommandCodec.encode(responseCommand) : null;
+					String responseText = binary ? null : serialize(responseCommand);
+					length = binary ? response.length : responseText.length();
+					encode.end(responseCommand, length);
+
+					StageEvent write = StageEvent.begin(TRANSPORT, StageEvent.WRITE);
+					if (binary)
+						sender.send(req.getJMSReplyTo(), response);
+					else
+						sender.send(req.getJMSReplyTo(), responseText);
+					write.end(responseCommand, length);
+
+				} catch (Exception e) {
+					System.out.println("Something went wrong...");
+					e.printStackTrace();
 				}
-
-			} catch (Exception e) {
-				System.out.println("Something went wrong...");
-				e.printStackTrace();
 			}
 
 		} catch (Exception e) {
@@ -137,6 +231,58 @@ public class BankServer {
 
 	}
 
+	private Serializable handleCommand(Object command) throws IOException {
+		Serializable responseCommand = null;
+
+		// accounts changed by this command, published with the next batch
+		List<String> changed = new ArrayList<>(2);
+
+		if (command instanceof NewAccountCmd) {
+			NewAccountCmd cmd = handleNewAccountCommand((NewAccountCmd) command);
+			changed.add(cmd.getAccountNumber());
+			responseCommand = cmd;
+
+		} else if (command instanceof GetAccountCmd) {
+			responseCommand = handleGetAccountCommand((GetAccountCmd) command);
+
+		} else if (command instanceof GetAccountNumbersCmd) {
+			responseCommand = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
+
+		} else if (command instanceof GetChangesSinceCmd) {
+			responseCommand = handleGetChangesSinceCommand((GetChangesSinceCmd) command);
+
+		} else if (command instanceof DepositCmd) {
+			DepositCmd cmd = handleDepositCommand((DepositCmd) command);
+			if (!cmd.isError())
+				changed.add(cmd.getAccountNr());
+			responseCommand = cmd;
+
+		} else if (command instanceof WithdrawCmd) {
+			WithdrawCmd cmd = handleWithdrawCommand((WithdrawCmd) command);
+			if (!cmd.isError())
+				changed.add(cmd.getAccountNr());
+			responseCommand = cmd;
+
+		} else if (command instanceof CloseAccountCmd) {
+			CloseAccountCmd cmd = handleCloseAccountCommand((CloseAccountCmd) command);
+			if (cmd.wasClosed())
+				changed.add(cmd.getAccountNr());
+			responseCommand = cmd;
+
+		} else if (command instanceof TransferCmd) {
+			TransferCmd cmd = handleTransferCommand((TransferCmd) command);
+			if (!cmd.hasError()) {
+				changed.add(cmd.getFromAccountNr());
+				changed.add(cmd.getToAccountNr());
+			}
+			responseCommand = cmd;
+		}
+
+		publisher.publish(changed);
+
+		return responseCommand;
+	}
+
 	private static String serialize(Serializable o) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ObjectOutputStream oos = new ObjectOutputStream(baos);
@@ -153,14 +299,7 @@ public class BankServer {
 		return o;
 	}
 
-	private static void sendUpdate(String number) {
-		try (JMSContext context = factory.createContext()) {
-			JMSProducer publisher = context.createProducer();
-			publisher.send(topic, number);
-		}
-	}
-
-	private Serializable handleNewAccountCommand(NewAccountCmd cmd) throws IOException {
+	private NewAccountCmd handleNewAccountCommand(NewAccountCmd cmd) throws IOException {
 		// create local account and set number on command
 		cmd.setAccountNumber(bank.createAccount(cmd.getOwner()));
 
@@ -169,16 +308,13 @@ public class BankServer {
 		return cmd;
 	}
 
-	private Serializable handleGetAccountCommand(GetAccountCmd cmd) throws IOException {
+	private GetAccountCmd handleGetAccountCommand(GetAccountCmd cmd) throws IOException {
 		// get account from repository
 		Account account = bank.getAccount(cmd.getNumber());
 
 		// set relevant data on command
 		if (account != null) {
-			cmd.setBalance(account.getBalance());
-			cmd.setActive(account.isActive());
-			cmd.setOwner(account.getOwner());
-			cmd.setAccountFound(true);
+			state(account, cmd);
 
 			log("Send account details of accountNr: " + cmd.getNumber());
 
@@ -189,7 +325,7 @@ public class BankServer {
 		return cmd;
 	}
 
-	private Serializable handleGetAccountNumbersCommand(GetAccountNumbersCmd cmd) throws IOException {
+	private GetAccountNumbersCmd handleGetAccountNumbersCommand(GetAccountNumbersCmd cmd) throws IOException {
 		// set current account numbers
 		cmd.setAccounts(bank.getAccountNumbers());
 
@@ -198,14 +334,51 @@ public class BankServer {
 		return cmd;
 	}
 
-	private Serializable handleDepositCommand(DepositCmd cmd) throws IOException {
+	private GetChangesSinceCmd handleGetChangesSinceCommand(GetChangesSinceCmd cmd) throws IOException {
+		List<String> numbers = new ArrayList<>();
+		cmd.setHeadVersion(bank.changeLog.changedSince(cmd.getEpoch(), cmd.getVersion(), numbers));
+		cmd.setEpoch(bank.changeLog.epoch());
+
+		List<GetAccountCmd> accounts = new ArrayList<>(numbers.size());
+		for (String number : numbers) {
+			Account account = bank.getAccount(number);
+			if (account != null)
+				accounts.add(state(account, new GetAccountCmd(number)));
+		}
+		cmd.setAccounts(accounts);
+
+		log("Send " + accounts.size() + " changes since version " + cmd.getVersion() + " to client.");
+
+		return cmd;
+	}
+
+	/**
+	 * Copies the state of the account and the version of its last change to
+	 * the command. Changes are stamped under the lock of the account, so the
+	 * version read under the same lock always belongs to the state.
+	 */
+	private GetAccountCmd state(Account account, GetAccountCmd cmd) {
+		synchronized (account) {
+			cmd.setBalance(account.getBalance());
+			cmd.setActive(account.isActive());
+			cmd.setVersion(bank.changeLog.versionOf(account.getNumber()));
+		}
+		cmd.setOwner(account.getOwner());
+		cmd.setAccountFound(true);
+		return cmd;
+	}
+
+	private DepositCmd handleDepositCommand(DepositCmd cmd) throws IOException {
 		Account account = bank.getAccount(cmd.getAccountNr());
 
 		log("Deposit of " + cmd.getAmount() + " requested on accountNr: " + cmd.getAccountNr());
 
 		try {
 			account.deposit(cmd.getAmount());
-			cmd.setNewBalance(account.getBalance());
+			synchronized (account) {
+				cmd.setNewBalance(account.getBalance());
+				cmd.setNewVersion(bank.changeLog.versionOf(account.getNumber()));
+			}
 			log("Deposit passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			err("Deposit failed with InactiveException!");
@@ -215,14 +388,17 @@ public class BankServer {
 		return cmd;
 	}
 
-	private Serializable handleWithdrawCommand(WithdrawCmd cmd) throws IOException {
+	private WithdrawCmd handleWithdrawCommand(WithdrawCmd cmd) throws IOException {
 		Account account = bank.getAccount(cmd.getAccountNr());
 
 		log("Withdraw of " + cmd.getAmount() + " requested on accountNr: " + cmd.getAccountNr());
 
 		try {
 			account.withdraw(cmd.getAmount());
-			cmd.setNewBalance(account.getBalance());
+			synchronized (account) {
+				cmd.setNewBalance(account.getBalance());
+				cmd.setNewVersion(bank.changeLog.versionOf(account.getNumber()));
+			}
 			log("Withdraw passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -237,14 +413,16 @@ public class BankServer {
 		return cmd;
 	}
 
-	private Serializable handleCloseAccountCommand(CloseAccountCmd cmd) throws IOException {
+	private CloseAccountCmd handleCloseAccountCommand(CloseAccountCmd cmd) throws IOException {
 		log("Close account requested for " + cmd.getAccountNr());
 
 		boolean closed = bank.closeAccount(cmd.getAccountNr());
 
-		if (closed)
+		if (closed) {
+			// a closed account does not change anymore
+			cmd.setVersion(bank.changeLog.versionOf(cmd.getAccountNr()));
 			log("Account " + cmd.getAccountNr() + " has been closed!");
-		else
+		} else
 			err("Account " + cmd.getAccountNr() + " could not be closed!");
 
 		cmd.setResult(closed);
@@ -252,7 +430,7 @@ public class BankServer {
 		return cmd;
 	}
 
-	private Serializable handleTransferCommand(TransferCmd cmd) throws IOException {
+	private TransferCmd handleTransferCommand(TransferCmd cmd) throws IOException {
 		Account from = bank.getAccount(cmd.getFromAccountNr());
 		Account to = bank.getAccount(cmd.getToAccountNr());
 
@@ -261,6 +439,14 @@ public class BankServer {
 
 		try {
 			bank.transfer(from, to, cmd.getAmount());
+			synchronized (from) {
+				cmd.setBalanceFromAccount(from.getBalance());
+				cmd.setVersionFromAccount(bank.changeLog.versionOf(from.getNumber()));
+			}
+			synchronized (to) {
+				cmd.setBalanceToAccount(to.getBalance());
+				cmd.setVersionToAccount(bank.changeLog.versionOf(to.getNumber()));
+			}
 			log("Transfer passed, new balances [from: " + from.getBalance() + ", to: " + to.getBalance() + "]");
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -279,6 +465,11 @@ public class BankServer {
 		return cmd;
 	}
 
+	private String ownerOf(String number) {
+		Account account = bank.getAccount(number);
+		return account != null ? account.getOwner() : null;
+	}
+
 	public Bank getBank() {
 		return bank;
 	}
@@ -295,43 +486,66 @@ public class BankServer {
 		System.err.println(s);
 	}
 
+	/**
+	 * Thread-safe bank. Every change of an account is stamped in the change
+	 * log while the lock of the account is held.
+	 */
 	static class Bank implements bank.Bank {
 
-		private final Map<String, Account> accounts = new HashMap<>();
+		private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+		private final ChangeLog changeLog = new ChangeLog();
 
 		@Override
 		public Set<String> getAccountNumbers() {
-			Set<String> accountNumbers = new HashSet<>();
-			for (Map.Entry<String, Account> entry : accounts.entrySet()) {
-				if (entry.getValue().isActive())
-					accountNumbers.add(entry.getKey());
-			}
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Set<String> accountNumbers = new HashSet<>();
+				for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+					if (entry.getValue().isActive())
+						accountNumbers.add(entry.getKey());
+				}
 
-			return accountNumbers;
+				return accountNumbers;
+			} finally {
+				event.end("getAccountNumbers", null);
+			}
 		}
 
 		@Override
 		public String createAccount(String owner) {
-			Account newAccount = new Account(owner);
-			accounts.put(newAccount.getNumber(), newAccount);
-
-			return newAccount.getNumber();
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Account newAccount = new Account(owner, changeLog);
+				accounts.put(newAccount.getNumber(), newAccount);
+				changeLog.stamp(newAccount.getNumber());
+
+				return newAccount.getNumber();
+			} finally {
+				event.end("createAccount", null);
+			}
 		}
 
 		@Override
 		public boolean closeAccount(String number) {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Account account = accounts.get(number);
+
+				if (account == null)
+					return false;
+
+				synchronized (account) {
+					if (account.isActive() && account.getBalance() == 0) {
+						account.active = false;
+						changeLog.stamp(number);
+						return true;
+					}
+				}
 
-			if (!accounts.containsKey(number))
 				return false;
-
-			Account account = accounts.get(number);
-
-			if (account.isActive() && account.getBalance() == 0) {
-				account.active = false;
-				return true;
+			} finally {
+				event.end("closeAccount", number);
 			}
-
-			return false;
 		}
 
 		@Override
@@ -342,12 +556,27 @@ public class BankServer {
 		@Override
 		public void transfer(bank.Account from, bank.Account to, double amount)
 				throws IOException, InactiveException, OverdrawException, IllegalArgumentException {
-
-			if (amount < 0)
-				throw new IllegalArgumentException("Can't transfer negative values!");
-
-			from.withdraw(amount);
-			to.deposit(amount);
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (amount < 0)
+					throw new IllegalArgumentException("Can't transfer negative values!");
+
+				// always lock in the same order to prevent deadlocks
+				Object first = from.getNumber().compareTo(to.getNumber()) < 0 ? from : to;
+				Object second = first == from ? to : from;
+
+				synchronized (first) {
+					synchronized (second) {
+						if (!from.isActive() || !to.isActive())
+							throw new InactiveException("Can't transfer from or to an inactive account");
+
+						from.withdraw(amount);
+						to.deposit(amount);
+					}
+				}
+			} finally {
+				event.end("transfer", from.getNumber());
+			}
 		}
 
 	}
@@ -356,14 +585,17 @@ public class BankServer {
 
 		private static final long serialVersionUID = 1112843626758025830L;
 
-		private String number;
-		private String owner;
-		private double balance;
-		private boolean active = true;
+		private final String number;
+		private final String owner;
+		private volatile double balance;
+		private volatile boolean active = true;
+
+		private final transient ChangeLog changeLog;
 
-		Account(String owner) {
+		Account(String owner, ChangeLog changeLog) {
 			this.owner = owner;
 			this.number = UUID.randomUUID().toString();
+			this.changeLog = changeLog;
 		}
 
 		@Override
@@ -387,23 +619,36 @@ public class BankServer {
 		}
 
 		@Override
-		public void deposit(double amount) throws InactiveException {
-			if (!isActive())
-				throw new InactiveException("Can't deposit on inactive account");
-
-			if (amount > 0)
-				this.balance += amount;
+		public synchronized void deposit(double amount) throws InactiveException {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't deposit on inactive account");
+
+				if (amount > 0) {
+					this.balance += amount;
+					changeLog.stamp(number);
+				}
+			} finally {
+				event.end("deposit", number);
+			}
 		}
 
 		@Override
-		public void withdraw(double amount) throws InactiveException, OverdrawException {
-			if (!isActive())
-				throw new InactiveException("Can't withdraw on inactive account");
-
-			if (balance < amount)
-				throw new OverdrawException("Insufficient balance");
-
-			this.balance -= amount;
+		public synchronized void withdraw(double amount) throws InactiveException, OverdrawException {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't withdraw on inactive account");
+
+				if (balance < amount)
+					throw new OverdrawException("Insufficient balance");
+
+				this.balance -= amount;
+				changeLog.stamp(number);
+			} finally {
+				event.end("withdraw", number);
+			}
 		}
 
 	}
@@ -0,0 +1,105 @@
+package server.connectivity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Queue;
+import javax.jms.Topic;
+
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.core.config.impl.ConfigurationImpl;
+import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.core.remoting.impl.netty.NettyAcceptorFactory;
+import org.hornetq.core.remoting.impl.netty.TransportConstants;
+import org.hornetq.jms.server.config.impl.ConnectionFactoryConfigurationImpl;
+import org.hornetq.jms.server.config.impl.JMSConfigurationImpl;
+import org.hornetq.jms.server.config.impl.JMSQueueConfigurationImpl;
+import org.hornetq.jms.server.config.impl.TopicConfigurationImpl;
+import org.hornetq.jms.server.embedded.EmbeddedJMS;
+
+/**
+ * Embedded HornetQ broker which provides the BANK queue and the BANK.LISTENER
+ * topic without an external JBoss server. The broker always accepts in-VM
+ * connections (e.g. the bank.jms.Driver with argument <code>vm</code>) and
+ * optionally TCP connections on the given addresses.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class EmbeddedBroker {
+
+	public static final String QUEUE_NAME = "BANK";
+	public static final String TOPIC_NAME = "BANK.LISTENER";
+
+	public static final String CONNECTION_FACTORY_BINDING = "ConnectionFactory";
+	public static final String QUEUE_BINDING = "/queue/BANK";
+	public static final String TOPIC_BINDING = "/topic/BANK";
+
+	public static final int DEFAULT_PORT = 5445;
+
+	private final EmbeddedJMS jms = new EmbeddedJMS();
+
+	/**
+	 * Creates a broker which accepts in-VM connections and TCP connections on
+	 * each of the given addresses.
+	 *
+	 * @param acceptors addresses of the form <code>host:port</code>
+	 */
+	public EmbeddedBroker(String... acceptors) {
+		ConfigurationImpl config = new ConfigurationImpl();
+		config.setPersistenceEnabled(false);
+		config.setSecurityEnabled(false);
+		config.setJMXManagementEnabled(false);
+
+		config.getAcceptorConfigurations().add(new TransportConfiguration(InVMAcceptorFactory.class.getName()));
+		config.getConnectorConfigurations().put("in-vm",
+				new TransportConfiguration(InVMConnectorFactory.class.getName()));
+
+		for (String acceptor : acceptors) {
+			int colon = acceptor.lastIndexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Acceptor must be given as host:port, was " + acceptor);
+
+			Map<String, Object> params = new HashMap<>();
+			params.put(TransportConstants.HOST_PROP_NAME, acceptor.substring(0, colon));
+			params.put(TransportConstants.PORT_PROP_NAME, Integer.parseInt(acceptor.substring(colon + 1)));
+			config.getAcceptorConfigurations().add(new TransportConfiguration(NettyAcceptorFactory.class.getName(), params));
+		}
+
+		JMSConfigurationImpl jmsConfig = new JMSConfigurationImpl();
+		jmsConfig.getConnectionFactoryConfigurations().add(new ConnectionFactoryConfigurationImpl(
+				CONNECTION_FACTORY_BINDING, false, Arrays.asList("in-vm"), CONNECTION_FACTORY_BINDING));
+		jmsConfig.getQueueConfigurations().add(new JMSQueueConfigurationImpl(QUEUE_NAME, null, false, QUEUE_BINDING));
+		jmsConfig.getTopicConfigurations().add(new TopicConfigurationImpl(TOPIC_NAME, TOPIC_BINDING));
+
+		jms.setConfiguration(config);
+		jms.setJmsConfiguration(jmsConfig);
+	}
+
+	public void start() throws Exception {
+		jms.start();
+	}
+
+	public void stop() throws Exception {
+		jms.stop();
+	}
+
+	/**
+	 * Returns a connection factory for in-VM connections to this broker.
+	 */
+	public ConnectionFactory getConnectionFactory() {
+		return (ConnectionFactory) jms.lookup(CONNECTION_FACTORY_BINDING);
+	}
+
+	public Queue getQueue() {
+		return (Queue) jms.lookup(QUEUE_BINDING);
+	}
+
+	public Topic getTopic() {
+		return (Topic) jms.lookup(TOPIC_BINDING);
+	}
+
+}
@@ -0,0 +1,163 @@
+package server.connectivity;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.jms.CompletionListener;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSProducer;
+import javax.jms.Message;
+import javax.jms.Topic;
+
+/**
+ * Publishes account change notifications on the BANK.LISTENER topic.
+ *
+ * The publisher keeps one context and producer for the lifetime of the server
+ * instead of opening a new broker connection per notification. Messages are
+ * sent asynchronously, so the consumer threads do not wait for the broker to
+ * acknowledge a notification.
+ *
+ * Changed account numbers are collected for a short window (or until a batch
+ * is full) and published as a single message. The message body holds the
+ * account numbers separated by {@link #SEPARATOR}, the property
+ * {@link #COUNT_PROPERTY} holds the number of accounts in the batch. A batch
+ * with a single account therefore still yields the plain account number.
+ *
+ * Clients interested in a few accounts only subscribe with a message selector
+ * on the properties {@link #ACCOUNTS_PROPERTY} and {@link #OWNERS_PROPERTY}.
+ * Both hold the values of the batch enclosed in separators (e.g.
+ * <code>,a,b,</code>), so a selector like <code>accounts LIKE '%,a,%'</code>
+ * matches a single entry. The owners are listed in the order of the account
+ * numbers in the body. They are URL encoded (see {@link #encode(String)}), as
+ * an owner may contain the separator itself.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+class NotificationPublisher implements AutoCloseable {
+
+	static final String SEPARATOR = ",";
+	static final String COUNT_PROPERTY = "count";
+	static final String ACCOUNTS_PROPERTY = "accounts";
+	static final String OWNERS_PROPERTY = "owners";
+
+	private final JMSContext context;
+	private final JMSProducer producer;
+	private final Topic topic;
+	private final Function<String, String> owners;
+
+	private final long window;
+	private final int maxBatchSize;
+
+	private final ScheduledExecutorService flusher;
+	// changed account numbers and their owners
+	private final Map<String, String> pending = new LinkedHashMap<>();
+	private boolean flushScheduled = false;
+
+	/**
+	 * @param owners looks up the owner of an account by its number
+	 * @param window time in milliseconds changes are collected before they are
+	 *            published, 0 publishes every change immediately
+	 * @param maxBatchSize number of changed accounts after which a batch is
+	 *            published before the window has elapsed
+	 */
+	NotificationPublisher(ConnectionFactory factory, Topic topic, Function<String, String> owners, long window,
+			int maxBatchSize) {
+		this.topic = topic;
+		this.owners = owners;
+		this.window = window;
+		this.maxBatchSize = maxBatchSize;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "bank-notification-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		this.context = factory.createContext();
+		this.producer = context.createProducer().setAsync(new CompletionListener() {
+			@Override
+			public void onCompletion(Message message) {
+				// nothing to do, notifications are fire and forget
+			}
+
+			@Override
+			public void onException(Message message, Exception e) {
+				System.err.println("Could not publish account update!");
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Adds the given account numbers to the current batch. The batch is
+	 * published when the window elapses or when it reaches the maximal size,
+	 * whichever comes first. Duplicates are removed and nothing is sent if no
+	 * account has changed.
+	 */
+	synchronized void publish(Collection<String> numbers) {
+		for (String number : numbers) {
+			if (number != null)
+				pending.put(number, owners.apply(number));
+		}
+
+		if (pending.isEmpty())
+			return;
+
+		if (window <= 0 || pending.size() >= maxBatchSize) {
+			flush();
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			flusher.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Publishes the pending batch. A JMSContext must not be used by several
+	 * threads at once, therefore all sends happen while holding the lock.
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+
+		if (pending.isEmpty())
+			return;
+
+		String numbers = String.join(SEPARATOR, pending.keySet());
+
+		StringBuilder owners = new StringBuilder(SEPARATOR);
+		for (String owner : pending.values())
+			owners.append(owner == null ? "" : encode(owner)).append(SEPARATOR);
+
+		producer.setProperty(COUNT_PROPERTY, pending.size());
+		producer.setProperty(ACCOUNTS_PROPERTY, SEPARATOR + numbers + SEPARATOR);
+		producer.setProperty(OWNERS_PROPERTY, owners.toString());
+		producer.send(topic, numbers);
+		pending.clear();
+	}
+
+	/**
+	 * URL encodes the owner, the encoded value contains neither the separator
+	 * nor quotes.
+	 */
+	static String encode(String owner) {
+		try {
+			return URLEncoder.encode(owner, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		flush();
+		flusher.shutdown();
+		context.close();
+	}
+
+}
@@ -8,6 +8,7 @@ public class DepositCmd implements Serializable {
 
 	private double amount;
 	private double newBalance;
+	private long newVersion; // version of the account after the change
 	private String accountNr;
 
 	private boolean error = false;
@@ -33,6 +34,14 @@ public class DepositCmd implements Serializable {
 		this.newBalance = newBalance;
 	}
 
+	public long getNewVersion() {
+		return newVersion;
+	}
+
+	public void setNewVersion(long newVersion) {
+		this.newVersion = newVersion;
+	}
+
 	public String getAccountNr() {
 		return accountNr;
 	}
@@ -1,14 +1,20 @@
 package server.connectivity;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -19,6 +25,7 @@ import bank.commands.CloseAccountCmd;
 import bank.commands.DepositCmd;
 import bank.commands.GetAccountCmd;
 import bank.commands.GetAccountNumbersCmd;
+import bank.commands.GetChangesSinceCmd;
 import bank.commands.NewAccountCmd;
 import bank.commands.TransferCmd;
 import bank.commands.WithdrawCmd;
@@ -33,8 +40,12 @@ public class BankServer {
 
 	private final int PORT = 1337;
 
+	static final String TRANSPORT = "sockets";
+
 	private ServerSocket socket;
 	private Bank bank;
+	private final ChangeLog changeLog = new ChangeLog();
+	private final CommandMetrics metrics = new CommandMetrics(TRANSPORT);
 
 	public BankServer() {
 		try {
@@ -57,61 +68,127 @@ public class BankServer {
 	private void handleRequest() {
 		try {
 			Socket socket = this.socket.accept();
+			long arrival = System.nanoTime();
+			StageEvent accept = StageEvent.begin(TRANSPORT, StageEvent.ACCEPT);
 
 			log("\nNew request received from: " + socket.getInetAddress().toString());
 
-//			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-//			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-
 			DataInputStream in = new DataInputStream(socket.getInputStream());
 			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-			
-			String line = null;
-			String lastLine = null;
-			while((line = in.readUTF()) != null){
-				lastLine = line;
+			accept.end(null, 0);
+
+			// one command per connection, see bank.sockets.Driver#sendCommand
+			StageEvent read = StageEvent.begin(TRANSPORT, StageEvent.READ);
+			byte[] data = readFrame(in);
+			read.end(null, data.length);
+
+			StageEvent decode = StageEvent.begin(TRANSPORT, StageEvent.DESERIALIZE);
+			Object request = deserialize(data);
+			decode.end(request, data.length);
+
+			long start = metrics.started(request, arrival);
+			StageEvent dispatch = StageEvent.begin(TRANSPORT, StageEvent.DISPATCH);
+			Object command;
+			try {
+				command = handleCommand(request);
+			} catch (IOException | RuntimeException e) {
+				metrics.failed(request, start, e);
+				throw e;
 			}
-			
-			Object command = null;//in.readObject();
-
-			if (command instanceof NewAccountCmd) {
-				command = handleNewAccountCommand((NewAccountCmd) command);
-
-			} else if (command instanceof GetAccountCmd) {
-				command = handleGetAccountCommand((GetAccountCmd) command);
+			dispatch.end(command, 0);
+			metrics.completed(request, start, command);
 
-			} else if (command instanceof GetAccountNumbersCmd) {
-				command = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
-
-			} else if (command instanceof DepositCmd) {
-				command = handleDepositCommand((DepositCmd) command);
-
-			} else if (command instanceof WithdrawCmd) {
-				command = handleWithdrawCommand((WithdrawCmd) command);
-
-			} else if (command instanceof CloseAccountCmd) {
-				command = handleCloseAccountCommand((CloseAccountCmd) command);
-
-			} else if (command instanceof TransferCmd) {
-				command = handleTransferCommand((TransferCmd) command);
-			}
+			StageEvent encode = StageEvent.begin(TRANSPORT, StageEvent.SERIALIZE);
+			byte[] response = serialize((Serializable) command);
+			encode.end(command, response.length);
 
 			// write back to client
-			//out.writeObject(command);
+			StageEvent write = StageEvent.begin(TRANSPORT, StageEvent.WRITE);
+			writeFrame(out, response);
+			write.end(command, response.length);
 
 			socket.close();
 
 		} catch (EOFException e) {
 			// happens on test connection
 			// TODO [kki]: fix it / handle the right way
-		} catch (IOException e) {
+		} catch (IOException | ClassCastException | ClassNotFoundException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private Object handleCommand(Object command) throws IOException {
+		if (command instanceof NewAccountCmd) {
+			command = handleNewAccountCommand((NewAccountCmd) command);
+
+		} else if (command instanceof GetAccountCmd) {
+			command = handleGetAccountCommand((GetAccountCmd) command);
+
+		} else if (command instanceof GetAccountNumbersCmd) {
+			command = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
+
+		} else if (command instanceof GetChangesSinceCmd) {
+			command = handleGetChangesSinceCommand((GetChangesSinceCmd) command);
+
+		} else if (command instanceof DepositCmd) {
+			command = handleDepositCommand((DepositCmd) command);
+
+		} else if (command instanceof WithdrawCmd) {
+			command = handleWithdrawCommand((WithdrawCmd) command);
+
+		} else if (command instanceof CloseAccountCmd) {
+			command = handleCloseAccountCommand((CloseAccountCmd) command);
+
+		} else if (command instanceof TransferCmd) {
+			command = handleTransferCommand((TransferCmd) command);
+		}
+
+		return command;
+	}
+
+	private static byte[] serialize(Serializable o) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(o);
+		oos.close();
+		return baos.toByteArray();
+	}
+
+	private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+		Object o = ois.readObject();
+		ois.close();
+		return o;
+	}
+
+	/**
+	 * Writes the data as frame: its length followed by the data. Unlike
+	 * writeUTF, which is limited to 64 KB, a frame can hold the change list
+	 * of a large bank.
+	 */
+	static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+	}
+
+	/**
+	 * Reads a frame written by {@link #writeFrame(DataOutputStream, byte[])}.
+	 */
+	static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Invalid frame length " + length);
+
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
 	private Object handleNewAccountCommand(NewAccountCmd cmd) throws IOException {
 		// create local account and set number on command
 		cmd.setAccountNumber(bank.createAccount(cmd.getOwner()));
+		changeLog.stamp(cmd.getAccountNumber());
 
 		log("Created new account for : " + cmd.getOwner() + " - accountNr: " + cmd.getAccountNumber());
 
@@ -124,10 +201,7 @@ public class BankServer {
 
 		// set relevant data on command
 		if (account != null) {
-			cmd.setBalance(account.getBalance());
-			cmd.setActive(account.isActive());
-			cmd.setOwner(account.getOwner());
-			cmd.setAccountFound(true);
+			state(account, cmd);
 
 			log("Send account details of accountNr: " + cmd.getNumber());
 
@@ -147,6 +221,38 @@ public class BankServer {
 		return cmd;
 	}
 
+	private Object handleGetChangesSinceCommand(GetChangesSinceCmd cmd) throws IOException {
+		List<String> numbers = new ArrayList<>();
+		cmd.setHeadVersion(changeLog.changedSince(cmd.getEpoch(), cmd.getVersion(), numbers));
+		cmd.setEpoch(changeLog.epoch());
+
+		List<GetAccountCmd> accounts = new ArrayList<>(numbers.size());
+		for (String number : numbers) {
+			Account account = bank.getAccount(number);
+			if (account != null)
+				accounts.add(state(account, new GetAccountCmd(number)));
+		}
+		cmd.setAccounts(accounts);
+
+		log("Send " + accounts.size() + " changes since version " + cmd.getVersion() + " to client.");
+
+		return cmd;
+	}
+
+	/**
+	 * Copies the state of the account and the version of its last change to
+	 * the command. Requests are handled one after the other, so the version
+	 * always belongs to the state.
+	 */
+	private GetAccountCmd state(Account account, GetAccountCmd cmd) {
+		cmd.setBalance(account.getBalance());
+		cmd.setActive(account.isActive());
+		cmd.setOwner(account.getOwner());
+		cmd.setVersion(changeLog.versionOf(account.getNumber()));
+		cmd.setAccountFound(true);
+		return cmd;
+	}
+
 	private Object handleDepositCommand(DepositCmd cmd) throws IOException {
 		Account account = bank.getAccount(cmd.getAccountNr());
 
@@ -155,6 +261,7 @@ public class BankServer {
 		try {
 			account.deposit(cmd.getAmount());
 			cmd.setNewBalance(account.getBalance());
+			cmd.setNewVersion(changeLog.stamp(cmd.getAccountNr()));
 			log("Deposit passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			err("Deposit failed with InactiveException!");
@@ -172,6 +279,7 @@ public class BankServer {
 		try {
 			account.withdraw(cmd.getAmount());
 			cmd.setNewBalance(account.getBalance());
+			cmd.setNewVersion(changeLog.stamp(cmd.getAccountNr()));
 			log("Withdraw passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -191,10 +299,12 @@ public class BankServer {
 
 		boolean closed = bank.closeAccount(cmd.getAccountNr());
 
-		if (closed)
+		if (closed) {
+			cmd.setVersion(changeLog.stamp(cmd.getAccountNr()));
 			log("Account " + cmd.getAccountNr() + " has been closed!");
-		else
+		} else {
 			err("Account " + cmd.getAccountNr() + " could not be closed!");
+		}
 
 		cmd.setResult(closed);
 
@@ -210,6 +320,10 @@ public class BankServer {
 
 		try {
             bank.transfer(from, to, cmd.getAmount());
+            cmd.setBalanceFromAccount(from.getBalance());
+            cmd.setBalanceToAccount(to.getBalance());
+            cmd.setVersionFromAccount(changeLog.stamp(from.getNumber()));
+            cmd.setVersionToAccount(changeLog.stamp(to.getNumber()));
             log("Transfer passed, new balances [from: " + from.getBalance() + ", to: " + to.getBalance() + "]");
         } catch (InactiveException e) {
             cmd.setError(true);
@@ -250,37 +364,51 @@ public class BankServer {
 
 		@Override
 		public Set<String> getAccountNumbers() {
-			Set<String> accountNumbers = new HashSet<>();
-			for (Map.Entry<String, Account> entry : accounts.entrySet()) {
-				if (entry.getValue().isActive())
-					accountNumbers.add(entry.getKey());
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Set<String> accountNumbers = new HashSet<>();
+				for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+					if (entry.getValue().isActive())
+						accountNumbers.add(entry.getKey());
+				}
+
+				return accountNumbers;
+			} finally {
+				event.end("getAccountNumbers", null);
 			}
-
-			return accountNumbers;
 		}
 
 		@Override
 		public String createAccount(String owner) {
-			Account newAccount = new Account(owner);
-			accounts.put(newAccount.getNumber(), newAccount);
-
-			return newAccount.getNumber();
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Account newAccount = new Account(owner);
+				accounts.put(newAccount.getNumber(), newAccount);
+
+				return newAccount.getNumber();
+			} finally {
+				event.end("createAccount", null);
+			}
 		}
 
 		@Override
 		public boolean closeAccount(String number) {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!accounts.containsKey(number))
+					return false;
 
-			if (!accounts.containsKey(number))
-				return false;
+				Account account = accounts.get(number);
 
-			Account account = accounts.get(number);
+				if (account.isActive() && account.getBalance() == 0) {
+					account.active = false;
+					return true;
+				}
 
-			if (account.isActive() && account.getBalance() == 0) {
-				account.active = false;
-				return true;
+				return false;
+			} finally {
+				event.end("closeAccount", number);
 			}
-
-			return false;
 		}
 
 		@Override
@@ -291,12 +419,16 @@ public class BankServer {
 		@Override
 		public void transfer(bank.Account from, bank.Account to, double amount)
 				throws IOException, InactiveException, OverdrawException, IllegalArgumentException {
-
-			if (amount < 0)
-				throw new IllegalArgumentException("Can't transfer negative values!");
-
-			from.withdraw(amount);
-			to.deposit(amount);
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (amount < 0)
+					throw new IllegalArgumentException("Can't transfer negative values!");
+
+				from.withdraw(amount);
+				to.deposit(amount);
+			} finally {
+				event.end("transfer", from.getNumber());
+			}
 		}
 
 	}
@@ -337,22 +469,32 @@ public class BankServer {
 
 		@Override
 		public void deposit(double amount) throws InactiveException {
-			if (!isActive())
-				throw new InactiveException("Can't deposit on inactive account");
-
-			if (amount > 0)
-				this.balance += amount;
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't deposit on inactive account");
+
+				if (amount > 0)
+					this.balance += amount;
+			} finally {
+				event.end("deposit", number);
+			}
 		}
 
 		@Override
 		public void withdraw(double amount) throws InactiveException, OverdrawException {
-			if (!isActive())
-				throw new InactiveException("Can't withdraw on inactive account");
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't withdraw on inactive account");
 
-			if (balance < amount)
-				throw new OverdrawException("Insufficient balance");
+				if (balance < amount)
+					throw new OverdrawException("Insufficient balance");
 
-			this.balance -= amount;
+				this.balance -= amount;
+			} finally {
+				event.end("withdraw", number);
+			}
 		}
 
 	}
@@ -0,0 +1,181 @@
+package bank;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Client side cache of the account proxies of a remote bank driver.
+ *
+ * Every proxy is kept for the lifetime of the driver, so callers holding an
+ * account see its updates. In addition each entry is valid for a limited time
+ * only: a valid entry is served without asking the server, an invalid entry
+ * has to be refreshed first. Drivers which are informed about changes by the
+ * server validate the entries {@link #FOREVER} and invalidate them when a
+ * change is pushed, the other drivers use a time to live.
+ *
+ * Invalidations win over concurrent refreshes: a response which was requested
+ * before an invalidation does not validate the entry (see
+ * {@link #generation()}).
+ *
+ * The state of a proxy is only written through {@link #update}. Every state
+ * carries the version the server stamped on the last change of the account,
+ * an entry keeps the version of its state and ignores older ones, so a late
+ * response can not overwrite the state of a newer one.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class AccountCache<A extends Account> {
+
+	public static final long FOREVER = Long.MAX_VALUE;
+
+	// time in ms a refreshed account is served from the cache
+	public static final long DEFAULT_TTL = Long.getLong("bank.cache.ttl", 1000);
+
+	private static class Entry<A> {
+		final A account;
+		volatile long validUntil = 0;
+		long version = 0; // guarded by this
+
+		Entry(A account) {
+			this.account = account;
+		}
+	}
+
+	private final Map<String, Entry<A>> entries = new ConcurrentHashMap<>();
+
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Returns the account if its entry is valid, <code>null</code> if it has
+	 * to be fetched from the server.
+	 */
+	public A lookup(String number) {
+		Entry<A> entry = entries.get(number);
+
+		if (entry != null && System.currentTimeMillis() < entry.validUntil) {
+			hits.incrementAndGet();
+			return entry.account;
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Returns the account regardless of the validity of its entry.
+	 */
+	public A get(String number) {
+		Entry<A> entry = entries.get(number);
+		return entry != null ? entry.account : null;
+	}
+
+	/**
+	 * Returns the account, the proxy is created if it is not cached yet. The
+	 * entry of a new proxy is invalid until {@link #validate} is called.
+	 */
+	public A computeIfAbsent(String number, Function<String, A> factory) {
+		return entries.computeIfAbsent(number, n -> new Entry<>(factory.apply(n))).account;
+	}
+
+	/**
+	 * Current generation of the cache, to be read before a request is sent and
+	 * to be passed to {@link #validate} with its response.
+	 */
+	public long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Marks the entry valid for the given time, unless an entry has been
+	 * invalidated since the given generation was read.
+	 *
+	 * @param ttl time in ms or {@link #FOREVER}
+	 */
+	public void validate(String number, long ttl, long generation) {
+		Entry<A> entry = entries.get(number);
+
+		if (entry == null || this.generation.get() != generation)
+			return;
+
+		entry.validUntil = ttl == FOREVER ? FOREVER : System.currentTimeMillis() + ttl;
+	}
+
+	/**
+	 * Writes a state of the account read by the server at the given version
+	 * to the proxy and validates the entry, unless the entry already holds a
+	 * newer state. Returns whether the state was written.
+	 *
+	 * @param version version of the last change of the account on the server
+	 * @param write writes the state to the proxy
+	 * @param ttl time in ms or {@link #FOREVER}
+	 * @param generation see {@link #validate}
+	 */
+	public boolean update(String number, long version, Consumer<A> write, long ttl, long generation) {
+		Entry<A> entry = entries.get(number);
+		if (entry == null)
+			return false;
+
+		synchronized (entry) {
+			if (version < entry.version)
+				return false;
+
+			entry.version = version;
+			write.accept(entry.account);
+		}
+
+		validate(number, ttl, generation);
+		return true;
+	}
+
+	public void invalidate(String number) {
+		generation.incrementAndGet();
+
+		Entry<A> entry = entries.get(number);
+		if (entry != null)
+			entry.validUntil = 0;
+	}
+
+	public void invalidateAll() {
+		generation.incrementAndGet();
+
+		for (Entry<A> entry : entries.values())
+			entry.validUntil = 0;
+	}
+
+	/**
+	 * Invalidates all entries and forgets their versions, e.g. after the
+	 * server was restarted and counts its versions from the start again.
+	 */
+	public void reset() {
+		generation.incrementAndGet();
+
+		for (Entry<A> entry : entries.values()) {
+			entry.validUntil = 0;
+			synchronized (entry) {
+				entry.version = 0;
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		long h = hits.get(), m = misses.get();
+		return "AccountCache[accounts=" + entries.size() + ", hits=" + h + ", misses=" + m + ", hit ratio="
+				+ String.format("%.2f", h + m == 0 ? 0.0 : (double) h / (h + m)) + "]";
+	}
+
+}
@@ -0,0 +1,29 @@
+package bank;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * The FilteredBankDriver interface extends {@link BankDriver2} with update
+ * handlers which are only informed about changes of selected accounts. The
+ * selection is passed to the server, so changes of other accounts are not
+ * sent to the client at all.
+ *
+ * @see BankDriver2
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public interface FilteredBankDriver extends BankDriver2 {
+
+	/**
+	 * Registers an update handler for the given accounts. The handler is
+	 * invoked whenever one of the accounts with the given numbers or one of
+	 * the accounts of the given owners changes.
+	 *
+	 * @param accounts numbers of the accounts of interest, may be empty
+	 * @param owners owners of the accounts of interest, may be empty
+	 * @param handler the update handler to be registered
+	 */
+	void registerUpdateHandler(Set<String> accounts, Set<String> owners, UpdateHandler handler)
+			throws IOException;
+}
@@ -8,6 +8,7 @@ public class CloseAccountCmd implements Serializable {
 
 	private String accountNr;
 	private boolean result;
+	private long version; // version of the account after it was closed
 
 	public CloseAccountCmd(String number) {
 		this.accountNr = number;
@@ -21,6 +22,14 @@ public class CloseAccountCmd implements Serializable {
 		this.accountNr = accountNr;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	public boolean wasClosed() {
 		return result;
 	}
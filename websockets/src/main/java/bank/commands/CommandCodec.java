@@ -0,0 +1,286 @@
+package bank.commands;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of the bank commands. Every command is written as
+ * a one byte tag followed by its fields, strings are written as modified UTF-8
+ * and preceded by a flag which marks <code>null</code> values.
+ *
+ * Compared to Java serialization no class descriptors are transferred, which
+ * makes the encoding considerably smaller and faster to process.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public final class CommandCodec {
+
+	private static final byte NULL = 0;
+	private static final byte NEW_ACCOUNT = 1;
+	private static final byte GET_ACCOUNT = 2;
+	private static final byte GET_ACCOUNT_NUMBERS = 3;
+	private static final byte DEPOSIT = 4;
+	private static final byte WITHDRAW = 5;
+	private static final byte CLOSE_ACCOUNT = 6;
+	private static final byte TRANSFER = 7;
+	private static final byte SUBSCRIBE = 8;
+	private static final byte GET_CHANGES_SINCE = 9;
+
+	private CommandCodec() {
+	}
+
+	public static byte[] encode(Object command) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(baos);
+		write(command, out);
+		out.close();
+		return baos.toByteArray();
+	}
+
+	public static Object decode(byte[] data) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	public static void write(Object command, DataOutputStream out) throws IOException {
+		if (command == null) {
+			out.writeByte(NULL);
+
+		} else if (command instanceof NewAccountCmd) {
+			NewAccountCmd cmd = (NewAccountCmd) command;
+			out.writeByte(NEW_ACCOUNT);
+			writeString(cmd.getOwner(), out);
+			writeString(cmd.getAccountNumber(), out);
+
+		} else if (command instanceof GetAccountCmd) {
+			GetAccountCmd cmd = (GetAccountCmd) command;
+			out.writeByte(GET_ACCOUNT);
+			writeString(cmd.getNumber(), out);
+			out.writeDouble(cmd.getBalance());
+			out.writeBoolean(cmd.isActive());
+			writeString(cmd.getOwner(), out);
+			out.writeBoolean(cmd.accountFound());
+			out.writeLong(cmd.getVersion());
+
+		} else if (command instanceof GetAccountNumbersCmd) {
+			GetAccountNumbersCmd cmd = (GetAccountNumbersCmd) command;
+			out.writeByte(GET_ACCOUNT_NUMBERS);
+			writeStrings(cmd.getAccounts(), out);
+
+		} else if (command instanceof DepositCmd) {
+			DepositCmd cmd = (DepositCmd) command;
+			out.writeByte(DEPOSIT);
+			writeString(cmd.getAccountNr(), out);
+			out.writeDouble(cmd.getAmount());
+			out.writeDouble(cmd.getNewBalance());
+			out.writeLong(cmd.getNewVersion());
+			out.writeBoolean(cmd.isError());
+
+		} else if (command instanceof WithdrawCmd) {
+			WithdrawCmd cmd = (WithdrawCmd) command;
+			out.writeByte(WITHDRAW);
+			writeString(cmd.getAccountNr(), out);
+			out.writeDouble(cmd.getAmount());
+			out.writeDouble(cmd.getNewBalance());
+			out.writeLong(cmd.getNewVersion());
+			out.writeBoolean(cmd.isError());
+			writeString(cmd.getErrMsg(), out);
+
+		} else if (command instanceof CloseAccountCmd) {
+			CloseAccountCmd cmd = (CloseAccountCmd) command;
+			out.writeByte(CLOSE_ACCOUNT);
+			writeString(cmd.getAccountNr(), out);
+			out.writeBoolean(cmd.wasClosed());
+			out.writeLong(cmd.getVersion());
+
+		} else if (command instanceof TransferCmd) {
+			TransferCmd cmd = (TransferCmd) command;
+			out.writeByte(TRANSFER);
+			writeString(cmd.getFromAccountNr(), out);
+			writeString(cmd.getToAccountNr(), out);
+			out.writeDouble(cmd.getAmount());
+			out.writeDouble(cmd.getBalanceFromAccount());
+			out.writeDouble(cmd.getBalanceToAccount());
+			out.writeLong(cmd.getVersionFromAccount());
+			out.writeLong(cmd.getVersionToAccount());
+			out.writeBoolean(cmd.hasError());
+			writeString(cmd.getErrMsg(), out);
+
+		} else if (command instanceof SubscribeCmd) {
+			SubscribeCmd cmd = (SubscribeCmd) command;
+			out.writeByte(SUBSCRIBE);
+			writeStrings(cmd.getAccounts(), out);
+			writeStrings(cmd.getOwners(), out);
+
+		} else if (command instanceof GetChangesSinceCmd) {
+			GetChangesSinceCmd cmd = (GetChangesSinceCmd) command;
+			out.writeByte(GET_CHANGES_SINCE);
+			out.writeLong(cmd.getEpoch());
+			out.writeLong(cmd.getVersion());
+			out.writeLong(cmd.getHeadVersion());
+			writeAccounts(cmd.getAccounts(), out);
+
+		} else {
+			throw new IOException("Unknown command: " + command.getClass().getName());
+		}
+	}
+
+	public static Object read(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+
+		switch (tag) {
+		case NULL:
+			return null;
+
+		case NEW_ACCOUNT: {
+			NewAccountCmd cmd = new NewAccountCmd(readString(in));
+			cmd.setAccountNumber(readString(in));
+			return cmd;
+		}
+
+		case GET_ACCOUNT: {
+			GetAccountCmd cmd = new GetAccountCmd(readString(in));
+			cmd.setBalance(in.readDouble());
+			cmd.setActive(in.readBoolean());
+			cmd.setOwner(readString(in));
+			cmd.setAccountFound(in.readBoolean());
+			cmd.setVersion(in.readLong());
+			return cmd;
+		}
+
+		case GET_ACCOUNT_NUMBERS: {
+			GetAccountNumbersCmd cmd = new GetAccountNumbersCmd();
+			cmd.setAccounts(readStrings(in));
+			return cmd;
+		}
+
+		case DEPOSIT: {
+			DepositCmd cmd = new DepositCmd(readString(in), in.readDouble());
+			cmd.setNewBalance(in.readDouble());
+			cmd.setNewVersion(in.readLong());
+			cmd.setError(in.readBoolean());
+			return cmd;
+		}
+
+		case WITHDRAW: {
+			WithdrawCmd cmd = new WithdrawCmd(readString(in), in.readDouble());
+			cmd.setNewBalance(in.readDouble());
+			cmd.setNewVersion(in.readLong());
+			cmd.setError(in.readBoolean());
+			cmd.setErrMsg(readString(in));
+			return cmd;
+		}
+
+		case CLOSE_ACCOUNT: {
+			CloseAccountCmd cmd = new CloseAccountCmd(readString(in));
+			cmd.setResult(in.readBoolean());
+			cmd.setVersion(in.readLong());
+			return cmd;
+		}
+
+		case TRANSFER: {
+			TransferCmd cmd = new TransferCmd(readString(in), readString(in), in.readDouble());
+			cmd.setBalanceFromAccount(in.readDouble());
+			cmd.setBalanceToAccount(in.readDouble());
+			cmd.setVersionFromAccount(in.readLong());
+			cmd.setVersionToAccount(in.readLong());
+			cmd.setError(in.readBoolean());
+			cmd.setErrMsg(readString(in));
+			return cmd;
+		}
+
+		case SUBSCRIBE:
+			return new SubscribeCmd(readStrings(in), readStrings(in));
+
+		case GET_CHANGES_SINCE: {
+			GetChangesSinceCmd cmd = new GetChangesSinceCmd(in.readLong(), in.readLong());
+			cmd.setHeadVersion(in.readLong());
+			cmd.setAccounts(readAccounts(in));
+			return cmd;
+		}
+
+		default:
+			throw new IOException("Unknown command tag: " + tag);
+		}
+	}
+
+	private static void writeString(String s, DataOutputStream out) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeStrings(Set<String> strings, DataOutputStream out) throws IOException {
+		if (strings == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(strings.size());
+		for (String s : strings)
+			writeString(s, out);
+	}
+
+	private static Set<String> readStrings(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0)
+			return null;
+
+		Set<String> strings = new HashSet<>(size * 4 / 3 + 1);
+		for (int i = 0; i < size; i++)
+			strings.add(readString(in));
+
+		return strings;
+	}
+
+	/**
+	 * Writes the state of the accounts (number, balance, active, owner,
+	 * version), without the tag of each command.
+	 */
+	private static void writeAccounts(List<GetAccountCmd> accounts, DataOutputStream out) throws IOException {
+		if (accounts == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(accounts.size());
+		for (GetAccountCmd account : accounts) {
+			writeString(account.getNumber(), out);
+			out.writeDouble(account.getBalance());
+			out.writeBoolean(account.isActive());
+			writeString(account.getOwner(), out);
+			out.writeLong(account.getVersion());
+		}
+	}
+
+	private static List<GetAccountCmd> readAccounts(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0)
+			return null;
+
+		List<GetAccountCmd> accounts = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			GetAccountCmd account = new GetAccountCmd(readString(in));
+			account.setBalance(in.readDouble());
+			account.setActive(in.readBoolean());
+			account.setOwner(readString(in));
+			account.setAccountFound(true);
+			account.setVersion(in.readLong());
+			accounts.add(account);
+		}
+
+		return accounts;
+	}
+
+}
@@ -0,0 +1,144 @@
+package bank.gui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+
+/**
+ * Sorted account numbers shown in the account combo box of the
+ * {@link BankGUI}.
+ *
+ * A refresh only applies the numbers added and removed since the last one.
+ * Small changes are fired as interval events, so the combo box only updates
+ * the affected rows; large changes are merged into the list in one pass and
+ * fired as a single change of the contents. Must only be used on the EDT.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+class AccountComboBoxModel extends AbstractListModel<String> implements ComboBoxModel<String> {
+
+	private static final long serialVersionUID = -3946181637510253315L;
+
+	// changes up to this size are fired per row
+	private static final int INTERVAL_EVENTS = 64;
+
+	private List<String> numbers = new ArrayList<>();
+	private Object selected;
+
+	@Override
+	public int getSize() {
+		return numbers.size();
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		return numbers.get(index);
+	}
+
+	@Override
+	public Object getSelectedItem() {
+		return selected;
+	}
+
+	@Override
+	public void setSelectedItem(Object item) {
+		if (selected == null ? item != null : !selected.equals(item)) {
+			selected = item;
+			fireContentsChanged(this, -1, -1);
+		}
+	}
+
+	public boolean contains(String number) {
+		return Collections.binarySearch(numbers, number) >= 0;
+	}
+
+	/**
+	 * Copy of the numbers, e.g. to compute the next diff in the background.
+	 */
+	public List<String> snapshot() {
+		return new ArrayList<>(numbers);
+	}
+
+	public void add(String number) {
+		int index = Collections.binarySearch(numbers, number);
+		if (index >= 0)
+			return;
+
+		index = -index - 1;
+		numbers.add(index, number);
+		fireIntervalAdded(this, index, index);
+
+		if (selected == null)
+			setSelectedItem(number);
+	}
+
+	public void remove(String number) {
+		int index = Collections.binarySearch(numbers, number);
+		if (index < 0)
+			return;
+
+		numbers.remove(index);
+		fireIntervalRemoved(this, index, index);
+
+		if (number.equals(selected))
+			setSelectedItem(numbers.isEmpty() ? null : numbers.get(Math.min(index, numbers.size() - 1)));
+	}
+
+	/**
+	 * Applies the numbers added and removed since the last update.
+	 */
+	public void update(Collection<String> added, Collection<String> removed) {
+		if (added.size() + removed.size() <= INTERVAL_EVENTS) {
+			for (String number : removed)
+				remove(number);
+			for (String number : added)
+				add(number);
+			return;
+		}
+
+		int oldSize = numbers.size();
+		Set<String> gone = new HashSet<>(removed);
+		List<String> sortedAdded = new ArrayList<>(added);
+		Collections.sort(sortedAdded);
+
+		// merge the remaining and the added numbers, both are sorted
+		List<String> merged = new ArrayList<>(numbers.size() - gone.size() + sortedAdded.size());
+		int i = 0;
+		int j = 0;
+		while (i < numbers.size() || j < sortedAdded.size()) {
+			if (i < numbers.size() && gone.contains(numbers.get(i))) {
+				i++;
+			} else if (j == sortedAdded.size()
+					|| (i < numbers.size() && numbers.get(i).compareTo(sortedAdded.get(j)) <= 0)) {
+				if (j < sortedAdded.size() && numbers.get(i).equals(sortedAdded.get(j)))
+					j++;
+				merged.add(numbers.get(i++));
+			} else {
+				merged.add(sortedAdded.get(j++));
+			}
+		}
+		numbers = merged;
+
+		if (numbers.size() < oldSize)
+			fireIntervalRemoved(this, numbers.size(), oldSize - 1);
+		else if (numbers.size() > oldSize)
+			fireIntervalAdded(this, oldSize, numbers.size() - 1);
+		if (!numbers.isEmpty())
+			fireContentsChanged(this, 0, numbers.size() - 1);
+
+		Object current = selected;
+		if (current != null && gone.contains(current))
+			current = null;
+		if (current == null && !numbers.isEmpty())
+			current = numbers.get(0);
+		setSelectedItem(current);
+	}
+
+}
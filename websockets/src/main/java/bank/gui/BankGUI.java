@@ -20,12 +20,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -43,6 +42,7 @@ import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import bank.Account;
 import bank.Bank;
@@ -57,7 +57,10 @@ public class BankGUI extends JFrame {
 	private BankDriver driver;
 	private Bank bank;
 
-	private JComboBox<String> accountcombo = new JComboBox<>();
+	private AccountComboBoxModel accountModel = new AccountComboBoxModel();
+	private JComboBox<String> accountcombo = new JComboBox<>(accountModel);
+
+	// account proxies, loaded when an account is shown or used
 	private Map<String, Account> accounts = new HashMap<>();
 
 	private JTextField fld_owner   = new JTextField();
@@ -77,6 +80,15 @@ public class BankGUI extends JFrame {
 	private Map<BankTest, JMenuItem> testMenuItems = new HashMap<>();
 	
 	private boolean ignoreItemChanges = false;
+
+	// a refresh is running in the background / another one was requested meanwhile
+	private boolean refreshRunning = false;
+	private boolean refreshPending = false;
+
+	// accounts changed since the last update was applied, guarded by itself
+	private final Set<String> changedAccounts = new HashSet<>();
+	private boolean fullRefreshRequested = false;
+	private boolean updateRunning = false;
 	
 	private BankTest loadTest(String name) {
 		try {
@@ -96,19 +108,11 @@ public class BankGUI extends JFrame {
 		this.bank   = server.getBank();
 		
 		if(server instanceof BankDriver2) {
-			final AtomicBoolean refreshRegistered = new AtomicBoolean(false);
 			try {
 				((BankDriver2)server).registerUpdateHandler(new BankDriver2.UpdateHandler(){
 					@Override
 					public void accountChanged(String number) {
-						if(refreshRegistered.compareAndSet(false, true)) {
-							SwingUtilities.invokeLater(new Runnable(){
-								@Override
-								public void run() {
-									refreshRegistered.set(false);
-									refreshDialog();
-								}});
-						}
+						BankGUI.this.accountChanged(number);
 					}});
 			} catch (IOException e1) {
 				throw new RuntimeException(e1);
@@ -233,6 +237,9 @@ public class BankGUI extends JFrame {
 		d.setSize(Math.max(d.getWidth(), 130), d.getHeight());
 		accountcombo.setPreferredSize(d);
 
+		// fixed cell size, so the popup does not measure every account number
+		accountcombo.setPrototypeDisplayValue("00000000-0000-0000-0000-000000000000");
+
 		refreshDialog();
 	}
 
@@ -288,8 +295,8 @@ public class BankGUI extends JFrame {
 					error(e);
 				}
 				ignoreItemChanges=true;
-				accountcombo.addItem(number);
-				accountcombo.setSelectedItem(number);
+				accountModel.add(number);
+				accountModel.setSelectedItem(number);
 				ignoreItemChanges=false;
 				refreshDialog();
 			}
@@ -327,7 +334,7 @@ public class BankGUI extends JFrame {
 		    if (s!=null) {
 			    try  {
 					double amount = Double.parseDouble(s);
-					Account a = accounts.get(number);
+					Account a = account(number);
 					a.deposit(amount);
 					fld_balance.setText(currencyFormat(a.getBalance()));
 			    }
@@ -358,7 +365,7 @@ public class BankGUI extends JFrame {
 	    	if (s!=null) {
 		    	try {
 					double amount = Double.parseDouble(s);
-					Account a = accounts.get(number);
+					Account a = account(number);
 					a.withdraw(amount);
 	    			fld_balance.setText(currencyFormat(a.getBalance()));
 		    	}
@@ -390,7 +397,7 @@ public class BankGUI extends JFrame {
  		String number = currentAccountNumber();
 		if (number != null) {
 			try{
-				Set<String> s = new HashSet<>(accounts.keySet());
+				Set<String> s = new HashSet<>(accountModel.snapshot());
 				s.remove(number);
 
 			    TransferDialog trans = new TransferDialog(this, "Transfer Money", number, s);
@@ -407,8 +414,8 @@ public class BankGUI extends JFrame {
 			    	else {
 						try {
 							double amount = Double.parseDouble(trans.getBalance());
-							Account from = accounts.get(number);
-							Account to   = accounts.get(trans.getAccountNumber());
+							Account from = account(number);
+							Account to   = account(trans.getAccountNumber());
 							bank.transfer(from, to, amount);
 							
 							// after transfer adjust value of displayed account
@@ -452,56 +459,217 @@ public class BankGUI extends JFrame {
 		System.exit(0);
 	}
 
+	/**
+	 * Reloads the account numbers in the background and applies the accounts
+	 * added and removed since the last refresh on the EDT.
+	 */
 	private void refreshDialog() {
-		String nr = currentAccountNumber();
-		accountcombo.removeAllItems();
-		if (bank != null)  {
-			try{
+		if (bank == null)
+			return;
+
+		// one refresh at a time, requests in between are merged into the next one
+		if (refreshRunning) {
+			refreshPending = true;
+			return;
+		}
+		refreshRunning = true;
+
+		final List<String> shown = accountModel.snapshot();
+		final String nr = currentAccountNumber();
+
+		new SwingWorker<Refresh, Void>() {
+			@Override
+			protected Refresh doInBackground() throws Exception {
 				Set<String> s = bank.getAccountNumbers();
-				ArrayList<String> accnumbers = new ArrayList<>(s);
-				Collections.sort(accnumbers);
-				ignoreItemChanges=true;
-				for(String item : accnumbers){
-					accountcombo.addItem(item);
-					if(item.equals(nr)) accountcombo.setSelectedItem(item);
+				Refresh refresh = new Refresh(s.size());
+
+				Set<String> old = new HashSet<>(shown);
+				for (String number : s) {
+					if (!old.contains(number))
+						refresh.added.add(number);
 				}
-				ignoreItemChanges=false;
-				
-				// clean up local accounts map
-				for(String key : s){
-					if(!accounts.containsKey(key)){
-						accounts.put(key, bank.getAccount(key));
-					}
+				for (String number : shown) {
+					if (!s.contains(number))
+						refresh.removed.add(number);
 				}
-				Iterator<String> it = accounts.keySet().iterator();
-				while(it.hasNext()){
-					if(!s.contains(it.next())) it.remove();
+
+				// load the account which is selected after the refresh
+				String selected = nr;
+				if (selected == null || !s.contains(selected))
+					selected = s.isEmpty() ? null : Collections.min(s);
+				if (selected != null) {
+					refresh.selectedNumber = selected;
+					refresh.selected = bank.getAccount(selected);
 				}
 
-				int size = s.size();
-				btn_deposit.setEnabled(size > 0);
-				btn_withdraw.setEnabled(size > 0);
-				btn_transfer.setEnabled(size > 1);
-				item_close.setEnabled(size > 0);
-				
-				for (BankTest t : tests) {
-					JMenuItem m = testMenuItems.get(t);
-					m.setEnabled(t.isEnabled(size));
+				return refresh;
+			}
+
+			@Override
+			protected void done() {
+				refreshRunning = false;
+				try {
+					Refresh refresh = get();
+
+					ignoreItemChanges = true;
+					try {
+						accountModel.update(refresh.added, refresh.removed);
+					} finally {
+						ignoreItemChanges = false;
+					}
+
+					for (String number : refresh.removed)
+						accounts.remove(number);
+					if (refresh.selected != null)
+						accounts.put(refresh.selectedNumber, refresh.selected);
+
+					updateControls(refresh.size);
+					updateCustomerInfo();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					error(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
 				}
 
-				updateCustomerInfo();
+				if (refreshPending) {
+					refreshPending = false;
+					refreshDialog();
+				}
 			}
-			catch(Exception e){
-				error(e);
+		}.execute();
+	}
+
+	/**
+	 * Called by the update handler of the driver. The changes are collected
+	 * and applied together, only a <code>null</code> number (unknown change)
+	 * triggers a full refresh.
+	 */
+	private void accountChanged(String number) {
+		boolean schedule;
+		synchronized (changedAccounts) {
+			schedule = changedAccounts.isEmpty() && !fullRefreshRequested;
+			if (number == null)
+				fullRefreshRequested = true;
+			else
+				changedAccounts.add(number);
+		}
+
+		if (schedule)
+			SwingUtilities.invokeLater(this::applyChanges);
+	}
+
+	/**
+	 * Loads the changed accounts in the background and updates only their
+	 * combo box entries and, if shown, the customer info.
+	 */
+	private void applyChanges() {
+		// applied in order, the next changes are applied when this update is done
+		if (updateRunning)
+			return;
+
+		final Set<String> changed;
+		boolean full;
+		synchronized (changedAccounts) {
+			changed = new HashSet<>(changedAccounts);
+			changedAccounts.clear();
+			full = fullRefreshRequested;
+			fullRefreshRequested = false;
+		}
+
+		if (full) {
+			refreshDialog();
+			return;
+		}
+		if (bank == null || changed.isEmpty())
+			return;
+
+		updateRunning = true;
+		new SwingWorker<List<AccountState>, Void>() {
+			@Override
+			protected List<AccountState> doInBackground() throws Exception {
+				List<AccountState> states = new ArrayList<>(changed.size());
+				for (String number : changed)
+					states.add(new AccountState(number, bank.getAccount(number)));
+				return states;
 			}
+
+			@Override
+			protected void done() {
+				updateRunning = false;
+				try {
+					String nr = currentAccountNumber();
+
+					ignoreItemChanges = true;
+					try {
+						for (AccountState state : get()) {
+							if (state.active) {
+								accounts.put(state.number, state.account);
+								accountModel.add(state.number);
+							} else {
+								accounts.remove(state.number);
+								accountModel.remove(state.number);
+							}
+
+							if (state.number.equals(nr) && state.active) {
+								fld_owner.setText(state.owner);
+								fld_balance.setText(currencyFormat(state.balance));
+							}
+						}
+					} finally {
+						ignoreItemChanges = false;
+					}
+
+					updateControls(accountModel.getSize());
+
+					// the selection changed (shown account closed or first account added)
+					String selected = currentAccountNumber();
+					if (selected != null ? !selected.equals(nr) : nr != null)
+						updateCustomerInfo();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					error(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+
+				synchronized (changedAccounts) {
+					if (changedAccounts.isEmpty() && !fullRefreshRequested)
+						return;
+				}
+				applyChanges();
+			}
+		}.execute();
+	}
+
+	private void updateControls(int size) {
+		btn_deposit.setEnabled(size > 0);
+		btn_withdraw.setEnabled(size > 0);
+		btn_transfer.setEnabled(size > 1);
+		item_close.setEnabled(size > 0);
+
+		for (BankTest t : tests) {
+			JMenuItem m = testMenuItems.get(t);
+			m.setEnabled(t.isEnabled(size));
 		}
 	}
 
+	/**
+	 * Returns the account proxy, it is loaded from the bank on first use.
+	 */
+	private Account account(String number) throws IOException {
+		Account a = accounts.get(number);
+		if (a == null) {
+			a = bank.getAccount(number);
+			if (a != null)
+				accounts.put(number, a);
+		}
+		return a;
+	}
+
 	private void updateCustomerInfo() {
 		String nr = currentAccountNumber();
 		try{
 			if(nr != null){
-				Account a = accounts.get(nr);
+				Account a = account(nr);
 				if(a != null){
 					fld_owner.setText(a.getOwner());
 					fld_balance.setText(currencyFormat(a.getBalance()));
@@ -545,6 +713,40 @@ public class BankGUI extends JFrame {
 		dlg.setVisible(true);
 	}
 
+	/**
+	 * Result of a background refresh.
+	 */
+	static class Refresh {
+		final int size;
+		final List<String> added = new ArrayList<>();
+		final List<String> removed = new ArrayList<>();
+		String selectedNumber;
+		Account selected;
+
+		Refresh(int size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * State of a changed account, read in the background.
+	 */
+	static class AccountState {
+		final String number;
+		final Account account;
+		final boolean active;
+		final String owner;
+		final double balance;
+
+		AccountState(String number, Account account) throws IOException {
+			this.number = number;
+			this.account = account;
+			this.active = account != null && account.isActive();
+			this.owner = account != null ? account.getOwner() : null;
+			this.balance = account != null ? account.getBalance() : 0;
+		}
+	}
+
 	static class ErrorBox extends JDialog {
 		public ErrorBox(Frame parent, Exception e){
 			super(parent);
@@ -658,6 +860,7 @@ public class BankGUI extends JFrame {
 			ArrayList<String> accnumbers = new ArrayList<>(accounts);
 			Collections.sort(accnumbers);
 			accountcombo = new JComboBox<>(accnumbers.toArray(new String[]{}));
+			accountcombo.setPrototypeDisplayValue(account);
 
 			// Create Layout
 			JPanel p=new JPanel(new GridLayout(4,2,10,10));
@@ -0,0 +1,289 @@
+package bank.gui.tests;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import bank.Bank;
+import bank.BankDriver;
+import bank.gui.tests.ConcurrencyBenchmark.Contention;
+import bank.gui.tests.ConcurrencyBenchmark.Result;
+import bank.gui.tests.ConcurrencyBenchmark.Workload;
+
+/**
+ * Runs the efficiency and concurrency tests without the GUI and writes the
+ * results as JSON or CSV, e.g. on a build server.
+ *
+ * <pre>
+ * Usage: java bank.gui.tests.BenchmarkRunner [options] &lt;classname&gt; [driver args]
+ *   --format json|csv    output format (default json)
+ *   --out file           write the results to the file instead of stdout
+ *   --baseline file      compare with the results of an earlier run (json or csv)
+ *   --threshold 0.2      allowed throughput loss and p99 latency increase
+ * </pre>
+ *
+ * The driver is loaded and connected like in {@link bank.Client}. The exit
+ * code is 1 if an operation failed, money was not conserved or a result
+ * regressed against the baseline by more than the threshold.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public final class BenchmarkRunner {
+
+	static final double DEFAULT_THRESHOLD = 0.2;
+
+	static final String[] COLUMNS = { "name", "threads", "operations", "errors", "throughput", "p50", "p90",
+			"p99", "p999", "max", "conserved" };
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		String format = "json";
+		String out = null;
+		String baseline = null;
+		double threshold = DEFAULT_THRESHOLD;
+
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("--"); i++) {
+			if (i + 1 == args.length)
+				usage();
+
+			switch (args[i]) {
+			case "--format":
+				format = args[++i];
+				break;
+			case "--out":
+				out = args[++i];
+				break;
+			case "--baseline":
+				baseline = args[++i];
+				break;
+			case "--threshold":
+				threshold = Double.parseDouble(args[++i]);
+				break;
+			default:
+				usage();
+			}
+		}
+		if (i == args.length || !(format.equals("json") || format.equals("csv")))
+			usage();
+
+		BankDriver driver = (BankDriver) Class.forName(args[i]).newInstance();
+		String[] driverArgs = new String[args.length - i - 1];
+		System.arraycopy(args, i + 1, driverArgs, 0, driverArgs.length);
+		driver.connect(driverArgs);
+
+		List<Map<String, Object>> results;
+		try {
+			results = run(driver.getBank());
+		} finally {
+			driver.disconnect();
+		}
+
+		String report = format.equals("csv") ? toCsv(results) : toJson(results);
+		if (out != null) {
+			try (FileWriter w = new FileWriter(out)) {
+				w.write(report);
+			}
+		} else {
+			System.out.print(report);
+		}
+
+		List<String> failures = check(results);
+		if (baseline != null)
+			failures.addAll(compare(results, read(baseline), threshold));
+
+		for (String failure : failures)
+			System.err.println("FAILED: " + failure);
+
+		// some drivers keep non-daemon threads
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java " + BenchmarkRunner.class.getName()
+				+ " [--format json|csv] [--out file] [--baseline file] [--threshold 0.2] <class> [args]");
+		System.exit(2);
+	}
+
+	/**
+	 * Runs the warm up, the single-threaded efficiency test and the
+	 * concurrency tests.
+	 */
+	static List<Map<String, Object>> run(Bank bank) throws Exception {
+		WarmUp.warmUp(bank, WarmUp.ROUNDS);
+
+		List<Map<String, Object>> results = new ArrayList<>();
+
+		ConcurrencyBenchmark single = new ConcurrencyBenchmark(bank, 1, ConcurrencyBenchmark.DEFAULT_OPERATIONS);
+		results.add(row("efficiency", single.run(Workload.DEPOSIT_WITHDRAW, Contention.CONTENDED)));
+
+		ConcurrencyBenchmark concurrent = new ConcurrencyBenchmark(bank);
+		for (Workload workload : Workload.values()) {
+			for (Contention contention : Contention.values()) {
+				String name = workload.name().toLowerCase(Locale.ROOT) + "-" + contention.name().toLowerCase(Locale.ROOT);
+				results.add(row(name, concurrent.run(workload, contention)));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Result as a row, latencies in microseconds.
+	 */
+	private static Map<String, Object> row(String name, Result result) {
+		Map<String, Object> row = new LinkedHashMap<>();
+		row.put("name", name);
+		row.put("threads", result.getThreads());
+		row.put("operations", result.getOperations());
+		row.put("errors", result.getErrors());
+		row.put("throughput", round(result.getThroughput()));
+		row.put("p50", round(result.getPercentile(50) / 1e3));
+		row.put("p90", round(result.getPercentile(90) / 1e3));
+		row.put("p99", round(result.getPercentile(99) / 1e3));
+		row.put("p999", round(result.getPercentile(99.9) / 1e3));
+		row.put("max", round(result.getMaxLatency() / 1e3));
+		row.put("conserved", result.isConserved());
+		return row;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 10) / 10.0;
+	}
+
+	static List<String> check(List<Map<String, Object>> results) {
+		List<String> failures = new ArrayList<>();
+		for (Map<String, Object> row : results) {
+			if (number(row, "errors") > 0)
+				failures.add(row.get("name") + ": " + row.get("errors") + " operations failed");
+			if (!Boolean.parseBoolean(String.valueOf(row.get("conserved"))))
+				failures.add(row.get("name") + ": money was not conserved");
+		}
+		return failures;
+	}
+
+	/**
+	 * Compares throughput and p99 latency of the results with the same name.
+	 * A result missing in the baseline fails as well, otherwise a renamed
+	 * test or a wrong baseline file would pass unnoticed.
+	 */
+	static List<String> compare(List<Map<String, Object>> results, List<Map<String, Object>> baseline,
+			double threshold) {
+		Map<String, Map<String, Object>> base = new LinkedHashMap<>();
+		for (Map<String, Object> row : baseline)
+			base.put(String.valueOf(row.get("name")), row);
+
+		List<String> failures = new ArrayList<>();
+		for (Map<String, Object> row : results) {
+			Map<String, Object> old = base.get(String.valueOf(row.get("name")));
+			if (old == null) {
+				failures.add(row.get("name") + ": no result in the baseline");
+				continue;
+			}
+
+			double throughput = number(row, "throughput");
+			double oldThroughput = number(old, "throughput");
+			if (throughput < oldThroughput * (1 - threshold))
+				failures.add(String.format(Locale.ROOT, "%s: throughput %.1f ops/s, baseline %.1f ops/s",
+						row.get("name"), throughput, oldThroughput));
+
+			double p99 = number(row, "p99");
+			double oldP99 = number(old, "p99");
+			if (p99 > oldP99 * (1 + threshold))
+				failures.add(String.format(Locale.ROOT, "%s: p99 %.1f us, baseline %.1f us", row.get("name"), p99,
+						oldP99));
+		}
+		return failures;
+	}
+
+	private static double number(Map<String, Object> row, String key) {
+		Object value = row.get(key);
+		return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(String.valueOf(value));
+	}
+
+	static String toJson(List<Map<String, Object>> results) {
+		StringWriter s = new StringWriter();
+		PrintWriter w = new PrintWriter(s);
+		w.println("[");
+		for (int i = 0; i < results.size(); i++) {
+			StringBuilder line = new StringBuilder("  {");
+			for (Map.Entry<String, Object> e : results.get(i).entrySet()) {
+				if (line.length() > 3)
+					line.append(", ");
+				line.append('"').append(e.getKey()).append("\": ");
+				if (e.getValue() instanceof String)
+					line.append('"').append(e.getValue()).append('"');
+				else
+					line.append(e.getValue());
+			}
+			w.println(line.append(i + 1 < results.size() ? "}," : "}"));
+		}
+		w.println("]");
+		w.flush();
+		return s.toString();
+	}
+
+	static String toCsv(List<Map<String, Object>> results) {
+		StringBuilder s = new StringBuilder(String.join(",", COLUMNS)).append("\n");
+		for (Map<String, Object> row : results) {
+			for (int i = 0; i < COLUMNS.length; i++)
+				s.append(i > 0 ? "," : "").append(row.get(COLUMNS[i]));
+			s.append("\n");
+		}
+		return s.toString();
+	}
+
+	private static final Pattern JSON_FIELD = Pattern.compile("\"(\\w+)\":\\s*(\"([^\"]*)\"|[^,}\\s]+)");
+
+	/**
+	 * Reads the results written by an earlier run, one result per line. The
+	 * format is detected from the content, JSON starts with a bracket and CSV
+	 * with the header row.
+	 */
+	static List<Map<String, Object>> read(String file) throws IOException {
+		List<Map<String, Object>> rows = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String first = in.readLine();
+			while (first != null && first.trim().isEmpty())
+				first = in.readLine();
+			if (first == null)
+				throw new IOException(file + " is empty");
+
+			boolean csv = !first.trim().startsWith("[");
+			String[] header = csv ? first.trim().split(",") : null;
+			if (csv && !Arrays.asList(header).contains("name"))
+				throw new IOException(file + " is neither a JSON nor a CSV result file");
+
+			for (String line = csv ? in.readLine() : first; line != null; line = in.readLine()) {
+				Map<String, Object> row = new LinkedHashMap<>();
+				if (csv) {
+					String[] values = line.split(",");
+					for (int i = 0; i < header.length && i < values.length; i++)
+						row.put(header[i], values[i]);
+				} else {
+					Matcher m = JSON_FIELD.matcher(line);
+					while (m.find())
+						row.put(m.group(1), m.group(3) != null ? m.group(3) : m.group(2));
+				}
+				if (row.containsKey("name"))
+					rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+}
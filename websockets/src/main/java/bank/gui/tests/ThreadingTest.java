@@ -0,0 +1,61 @@
+package bank.gui.tests;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+import bank.Bank;
+import bank.gui.tests.ConcurrencyBenchmark.Contention;
+import bank.gui.tests.ConcurrencyBenchmark.Result;
+import bank.gui.tests.ConcurrencyBenchmark.Workload;
+
+/**
+ * Runs transfers on contended accounts with an increasing number of threads
+ * (1, 2, 4, ... up to {@link ConcurrencyBenchmark#DEFAULT_THREADS}). Reports
+ * how the throughput scales and fails if an operation threw an exception or
+ * money was created or lost, e.g. by lost updates of unsynchronized accounts.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class ThreadingTest implements BankTest {
+
+	@Override
+	public String getName() {
+		return "Threading Test";
+	}
+
+	@Override
+	public boolean isEnabled(int size) {
+		return true;
+	}
+
+	@Override
+	public void runTests(JFrame context, Bank bank, String currentAccountNumber) throws Exception {
+		StringBuilder msg = new StringBuilder();
+		boolean passed = true;
+
+		try {
+			for (int threads = 1; ; threads = Math.min(2 * threads, ConcurrencyBenchmark.DEFAULT_THREADS)) {
+				ConcurrencyBenchmark benchmark = new ConcurrencyBenchmark(bank, threads,
+						ConcurrencyBenchmark.DEFAULT_OPERATIONS);
+
+				for (Workload workload : Workload.values()) {
+					Result result = benchmark.run(workload, Contention.CONTENDED);
+					passed &= result.getErrors() == 0 && result.isConserved();
+					msg.append(result).append("\n");
+				}
+
+				if (threads == ConcurrencyBenchmark.DEFAULT_THREADS)
+					break;
+			}
+		} catch (Exception e) {
+			passed = false;
+			msg.append("test did throw an exception\n").append(e.getMessage());
+		}
+
+		msg.insert(0, passed ? "Threading test passed\n\n" : "Threading test FAILED\n\n");
+		JOptionPane.showMessageDialog(context, msg.toString(), "Test Result",
+				passed ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE);
+	}
+
+}
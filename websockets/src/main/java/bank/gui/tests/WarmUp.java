@@ -0,0 +1,57 @@
+package bank.gui.tests;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+import bank.Bank;
+import bank.gui.tests.ConcurrencyBenchmark.Contention;
+import bank.gui.tests.ConcurrencyBenchmark.Workload;
+
+/**
+ * Runs the workloads of the {@link ConcurrencyBenchmark} a few times without
+ * reporting them, so the JIT, the connections and the caches of client and
+ * server are warm before the efficiency tests are measured.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class WarmUp implements BankTest {
+
+	static final int ROUNDS = Integer.getInteger("bank.bench.warmup", 3);
+
+	@Override
+	public String getName() {
+		return "Warm Up";
+	}
+
+	@Override
+	public boolean isEnabled(int size) {
+		return true;
+	}
+
+	@Override
+	public void runTests(JFrame context, Bank bank, String currentAccountNumber) throws Exception {
+		String msg;
+		try {
+			long st = System.nanoTime();
+			warmUp(bank, ROUNDS);
+			st = System.nanoTime() - st;
+			msg = ROUNDS + " warm up rounds in " + st / 1000000 / 1000.0 + " Sek";
+		} catch (Exception e) {
+			msg = "warm up did throw an exception\n" + e.getMessage();
+		}
+
+		JOptionPane.showMessageDialog(context, msg, "Test Result", JOptionPane.INFORMATION_MESSAGE);
+	}
+
+	static void warmUp(Bank bank, int rounds) throws Exception {
+		ConcurrencyBenchmark benchmark = new ConcurrencyBenchmark(bank);
+		for (int i = 0; i < rounds; i++) {
+			for (Workload workload : Workload.values()) {
+				for (Contention contention : Contention.values())
+					benchmark.run(workload, contention);
+			}
+		}
+	}
+
+}
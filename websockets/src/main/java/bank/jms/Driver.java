@@ -0,0 +1,686 @@
+package bank.jms;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSProducer;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.TemporaryQueue;
+import javax.jms.Topic;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.api.jms.HornetQJMSClient;
+import org.hornetq.api.jms.JMSFactoryType;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.core.remoting.impl.netty.NettyConnectorFactory;
+import org.hornetq.core.remoting.impl.netty.TransportConstants;
+
+import bank.AccountCache;
+import bank.InactiveException;
+import bank.OverdrawException;
+import bank.commands.CloseAccountCmd;
+import bank.commands.CommandCodec;
+import bank.commands.DepositCmd;
+import bank.commands.GetAccountCmd;
+import bank.commands.GetChangesSinceCmd;
+import bank.commands.NewAccountCmd;
+import bank.commands.TransferCmd;
+import bank.commands.WithdrawCmd;
+
+/**
+ * JMS bank driver implementation.
+ *
+ * Commands are sent as BytesMessage (see {@link CommandCodec}) to the BANK
+ * queue. All responses are received on one temporary queue per driver and are
+ * matched to the waiting caller by their JMSCorrelationID, so several threads
+ * may have requests in flight at the same time. Commands on an account are
+ * sent within the message group of the account number, which keeps them in
+ * order on the server.
+ *
+ * Update handlers registered for selected accounts or owners subscribe to the
+ * BANK.LISTENER topic with a message selector, so the broker only delivers
+ * the batches which contain one of these accounts.
+ *
+ * <pre>
+ * java bank.Client bank.jms.Driver                 (JNDI on localhost:1099)
+ * java bank.Client bank.jms.Driver localhost 5445  (broker without JNDI)
+ * java bank.Client bank.jms.Driver vm              (in-VM broker, e.g. EmbeddedBroker)
+ * </pre>
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class Driver implements bank.BatchBankDriver, bank.FilteredBankDriver {
+
+	// time in ms to wait for a response of the server
+	private static final long TIMEOUT = 10_000;
+
+	static final String SEPARATOR = ",";
+	static final String GROUP_PROPERTY = "JMSXGroupID";
+	static final String ACCOUNTS_PROPERTY = "accounts";
+	static final String OWNERS_PROPERTY = "owners";
+
+	private JMSContext context;
+	private JMSContext listenerContext;
+	private JMSProducer producer;
+	private Queue queue;
+	private Topic topic;
+	private TemporaryQueue replyQueue;
+
+	// one context per topic subscription, the unfiltered one is created with
+	// the first handler, so clients with filtered handlers only do not
+	// receive the changes of all accounts
+	private final List<JMSContext> subscriptions = new CopyOnWriteArrayList<>();
+	private volatile boolean subscribed = false;
+
+	private final String clientId = UUID.randomUUID().toString();
+	private final AtomicLong requestIds = new AtomicLong();
+	private final Map<String, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+
+	private final List<UpdateHandler> handlers = new CopyOnWriteArrayList<>();
+	private final List<BatchUpdateHandler> batchHandlers = new CopyOnWriteArrayList<>();
+
+	private Bank bank = null;
+
+	@Override
+	public void connect(String[] args) throws IOException {
+		ConnectionFactory factory;
+
+		if (args.length > 0 && "vm".equals(args[0])) {
+			factory = HornetQJMSClient.createConnectionFactoryWithoutHA(JMSFactoryType.CF,
+					new TransportConfiguration(InVMConnectorFactory.class.getName()));
+			queue = HornetQJMSClient.createQueue(EmbeddedBroker.QUEUE_NAME);
+			topic = HornetQJMSClient.createTopic(EmbeddedBroker.TOPIC_NAME);
+
+		} else if (args.length > 1) {
+			Map<String, Object> params = new HashMap<>();
+			params.put(TransportConstants.HOST_PROP_NAME, args[0]);
+			params.put(TransportConstants.PORT_PROP_NAME, Integer.parseInt(args[1]));
+
+			factory = HornetQJMSClient.createConnectionFactoryWithoutHA(JMSFactoryType.CF,
+					new TransportConfiguration(NettyConnectorFactory.class.getName(), params));
+			queue = HornetQJMSClient.createQueue(EmbeddedBroker.QUEUE_NAME);
+			topic = HornetQJMSClient.createTopic(EmbeddedBroker.TOPIC_NAME);
+
+		} else {
+			try {
+				Hashtable<String, String> properties = new Hashtable<>();
+				properties.put(Context.INITIAL_CONTEXT_FACTORY, "org.jnp.interfaces.NamingContextFactory");
+				properties.put(Context.PROVIDER_URL, "localhost:1099");
+
+				Context jndiContext = new InitialContext(properties);
+				factory = (ConnectionFactory) jndiContext.lookup(EmbeddedBroker.CONNECTION_FACTORY_BINDING);
+				queue = (Queue) jndiContext.lookup(EmbeddedBroker.QUEUE_BINDING);
+				topic = (Topic) jndiContext.lookup(EmbeddedBroker.TOPIC_BINDING);
+			} catch (NamingException e) {
+				throw new IOException("JMS resources could not be looked up", e);
+			}
+		}
+
+		try {
+			context = factory.createContext();
+			producer = context.createProducer();
+
+			// replies are delivered asynchronously on a separate session
+			listenerContext = context.createContext(JMSContext.AUTO_ACKNOWLEDGE);
+			replyQueue = listenerContext.createTemporaryQueue();
+			listenerContext.createConsumer(replyQueue).setMessageListener(this::onReply);
+		} catch (JMSRuntimeException e) {
+			throw new IOException("Could not connect to JMS broker", e);
+		}
+
+		System.out.println("Connected to JMS bank");
+
+		bank = new Bank(this);
+	}
+
+	@Override
+	public void disconnect() throws IOException {
+		bank = null;
+
+		for (JMSContext subscription : subscriptions)
+			subscription.close();
+		subscriptions.clear();
+
+		if (listenerContext != null)
+			listenerContext.close();
+		if (context != null)
+			context.close();
+
+		for (CompletableFuture<Object> f : pending.values())
+			f.completeExceptionally(new IOException("Disconnected"));
+	}
+
+	@Override
+	public Bank getBank() {
+		return bank;
+	}
+
+	/**
+	 * Cache of the account copies, e.g. to read its hit and miss counters.
+	 */
+	public AccountCache<Account> getCache() {
+		return bank != null ? bank.cache : null;
+	}
+
+	@Override
+	public void registerUpdateHandler(UpdateHandler handler) throws IOException {
+		handlers.add(handler);
+		subscribeAll();
+	}
+
+	@Override
+	public void registerBatchUpdateHandler(BatchUpdateHandler handler) throws IOException {
+		batchHandlers.add(handler);
+		subscribeAll();
+	}
+
+	@Override
+	public void registerUpdateHandler(Set<String> accounts, Set<String> owners, UpdateHandler handler)
+			throws IOException {
+		Set<String> numbers = accounts != null ? new HashSet<>(accounts) : new HashSet<>();
+		Set<String> names = owners != null ? new HashSet<>(owners) : new HashSet<>();
+
+		if (numbers.isEmpty() && names.isEmpty())
+			return;
+
+		// the broker only delivers batches which contain one of the accounts
+		List<String> terms = new ArrayList<>();
+		for (String number : numbers)
+			terms.add(like(ACCOUNTS_PROPERTY, number));
+		for (String owner : names)
+			terms.add(like(OWNERS_PROPERTY, encode(owner)));
+
+		subscribe(String.join(" OR ", terms), message -> onFilteredUpdate(message, numbers, names, handler));
+	}
+
+	/**
+	 * Whether the changes of all accounts are received.
+	 */
+	boolean isSubscribed() {
+		return subscribed;
+	}
+
+	private synchronized void subscribeAll() throws IOException {
+		if (!subscribed) {
+			subscribe(null, this::onUpdate);
+			subscribed = true;
+		}
+	}
+
+	private void subscribe(String selector, MessageListener listener) throws IOException {
+		try {
+			JMSContext subscription;
+
+			// a JMSContext must not be used by several threads at once
+			synchronized (producer) {
+				subscription = context.createContext(JMSContext.AUTO_ACKNOWLEDGE);
+			}
+
+			subscription.createConsumer(topic, selector).setMessageListener(listener);
+			subscriptions.add(subscription);
+
+		} catch (JMSRuntimeException e) {
+			throw new IOException("Could not subscribe to account changes", e);
+		}
+	}
+
+	/**
+	 * Selector term which matches if the separated list in the property
+	 * contains the value. Wildcards and quotes in the value are escaped.
+	 */
+	private static String like(String property, String value) {
+		String escaped = value.replace("!", "!!").replace("%", "!%").replace("_", "!_").replace("'", "''");
+		return property + " LIKE '%" + SEPARATOR + escaped + SEPARATOR + "%' ESCAPE '!'";
+	}
+
+	/**
+	 * The owners property holds URL encoded owners, as an owner may contain
+	 * the separator.
+	 */
+	private static String encode(String owner) {
+		try {
+			return URLEncoder.encode(owner, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String owner) {
+		try {
+			return URLDecoder.decode(owner, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sends the command and waits for the response of the server.
+	 *
+	 * @param group message group of the command, commands of the same group
+	 *            are processed in order
+	 */
+	Object sendCommand(Object cmd, String group) throws IOException {
+		String id = clientId + "-" + requestIds.incrementAndGet();
+
+		CompletableFuture<Object> response = new CompletableFuture<>();
+		pending.put(id, response);
+
+		try {
+			byte[] body = CommandCodec.encode(cmd);
+
+			// a JMSContext must not be used by several threads at once
+			synchronized (producer) {
+				producer.clearProperties();
+				if (group != null)
+					producer.setProperty(GROUP_PROPERTY, group);
+
+				producer.setJMSCorrelationID(id).setJMSReplyTo(replyQueue).send(queue, body);
+			}
+
+			return response.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		} catch (JMSRuntimeException e) {
+			throw new IOException("Could not send command", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Invalid response", e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("No response from bank server within " + TIMEOUT + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for response", e);
+		} finally {
+			pending.remove(id);
+		}
+	}
+
+	private void onReply(Message message) {
+		try {
+			CompletableFuture<Object> response = pending.get(message.getJMSCorrelationID());
+
+			if (response == null)
+				return; // caller has given up already
+
+			try {
+				response.complete(CommandCodec.decode(message.getBody(byte[].class)));
+			} catch (IOException | JMSException e) {
+				response.completeExceptionally(e);
+			}
+
+		} catch (JMSException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void onUpdate(Message message) {
+		try {
+			String body = message.getBody(String.class);
+			if (body == null)
+				return;
+
+			Set<String> ids = new LinkedHashSet<>(Arrays.asList(body.split(SEPARATOR)));
+
+			// the handlers fetch the changed accounts from the server again
+			invalidate(ids);
+
+			for (BatchUpdateHandler handler : batchHandlers)
+				handler.accountsChanged(ids);
+
+			for (UpdateHandler handler : handlers) {
+				for (String id : ids)
+					handler.accountChanged(id);
+			}
+
+		} catch (JMSException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void invalidate(Collection<String> ids) {
+		Bank bank = this.bank;
+		if (bank != null) {
+			for (String id : ids)
+				bank.cache.invalidate(id);
+		}
+	}
+
+	/**
+	 * A batch may also contain other accounts than the ones of interest, the
+	 * owners property lists the URL encoded owner of each account in the body.
+	 */
+	private void onFilteredUpdate(Message message, Set<String> numbers, Set<String> owners, UpdateHandler handler) {
+		try {
+			String body = message.getBody(String.class);
+			if (body == null)
+				return;
+
+			String[] ids = body.split(SEPARATOR);
+			invalidate(Arrays.asList(ids));
+
+			String ownerList = message.getStringProperty(OWNERS_PROPERTY);
+			String[] idOwners = ownerList != null ? ownerList.split(SEPARATOR, -1) : new String[0];
+
+			for (int i = 0; i < ids.length; i++) {
+				// the owner list starts with a separator
+				String owner = i + 1 < idOwners.length ? decode(idOwners[i + 1]) : null;
+
+				if (numbers.contains(ids[i]) || owners.contains(owner))
+					handler.accountChanged(ids[i]);
+			}
+
+		} catch (JMSException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	static class Bank implements bank.CachingBank {
+
+		private final Driver driver;
+
+		final AccountCache<Account> cache = new AccountCache<>();
+
+		// active accounts as of the version of the last GetChangesSinceCmd
+		private final Set<String> numbers = ConcurrentHashMap.newKeySet();
+		private volatile long epoch;
+		private volatile long version;
+
+		public Bank(Driver driver) {
+			this.driver = driver;
+		}
+
+		@Override
+		public String createAccount(String owner) throws IOException {
+
+			// create new account on bank server
+			long generation = cache.generation();
+			Object obj = driver.sendCommand(new NewAccountCmd(owner), null);
+
+			if (obj instanceof NewAccountCmd) {
+				NewAccountCmd response = (NewAccountCmd) obj;
+
+				// save local copy of account
+				Account newAccount = cache.computeIfAbsent(response.getAccountNumber(),
+						nr -> new Account(response.getOwner(), nr, this));
+				cache.validate(newAccount.getNumber(), ttl(), generation);
+				numbers.add(newAccount.getNumber());
+
+				return newAccount.getNumber();
+			}
+
+			return null;
+		}
+
+		@Override
+		public boolean closeAccount(String number) throws IOException {
+
+			long generation = cache.generation();
+			Object obj = driver.sendCommand(new CloseAccountCmd(number), number);
+
+			if (obj instanceof CloseAccountCmd) {
+
+				CloseAccountCmd cmd = (CloseAccountCmd) obj;
+
+				if (cmd.wasClosed()) {
+
+					// update local copy
+					cache.update(number, cmd.getVersion(), account -> account.active = false, ttl(), generation);
+					numbers.remove(number);
+
+					return true;
+				}
+
+			}
+
+			return false;
+		}
+
+		@Override
+		public synchronized Set<String> getAccountNumbers() throws IOException {
+
+			// only the accounts changed since the last call are sent, their
+			// state is applied to the cached copies as well
+			long generation = cache.generation();
+			Object obj = driver.sendCommand(new GetChangesSinceCmd(epoch, version), null);
+
+			if (obj instanceof GetChangesSinceCmd) {
+				GetChangesSinceCmd cmd = (GetChangesSinceCmd) obj;
+
+				// the server was restarted and sent all accounts again, the
+				// versions of the cached copies belong to the old server
+				if (cmd.getEpoch() != epoch) {
+					numbers.clear();
+					cache.reset();
+				}
+
+				for (GetAccountCmd change : cmd.getAccounts())
+					applyChange(change, generation);
+
+				epoch = cmd.getEpoch();
+				version = cmd.getHeadVersion();
+			}
+
+			return new HashSet<String>(numbers);
+		}
+
+		/**
+		 * Updates the cached copy and the list of active accounts with a change
+		 * sent by the server.
+		 */
+		private void applyChange(GetAccountCmd change, long generation) {
+			Account account = applyState(change, generation);
+
+			// the copy may already hold a newer state than the change
+			if (account.isActive())
+				numbers.add(change.getNumber());
+			else
+				numbers.remove(change.getNumber());
+		}
+
+		/**
+		 * Writes the state sent by the server to the cached copy, unless the
+		 * copy already holds a newer state.
+		 */
+		private Account applyState(GetAccountCmd state, long generation) {
+			Account account = cache.computeIfAbsent(state.getNumber(), nr -> new Account(state.getOwner(), nr, this));
+
+			cache.update(state.getNumber(), state.getVersion(), a -> {
+				a.balance = state.getBalance();
+				a.active = state.isActive();
+			}, ttl(), generation);
+
+			return account;
+		}
+
+		@Override
+		public Account getAccount(String number) throws IOException {
+
+			// served locally as long as the cached copy is valid
+			Account cached = cache.lookup(number);
+			if (cached != null)
+				return cached;
+
+			long generation = cache.generation();
+
+			// request account details from bank server
+			Object obj = driver.sendCommand(new GetAccountCmd(number), number);
+
+			if (obj instanceof GetAccountCmd) {
+				GetAccountCmd cmd = (GetAccountCmd) obj;
+
+				// check if account exists on server
+				if (!cmd.accountFound())
+					return null;
+
+				// add account to local bank or update existing one
+				return applyState(cmd, generation);
+			}
+
+			return null;
+		}
+
+		@Override
+		public void transfer(bank.Account a, bank.Account b, double amount)
+				throws IOException, IllegalArgumentException, OverdrawException, InactiveException {
+
+			long generation = cache.generation();
+
+			Object obj = driver.sendCommand(new TransferCmd(a.getNumber(), b.getNumber(), amount), a.getNumber());
+
+			if (obj instanceof TransferCmd) {
+
+				TransferCmd cmd = (TransferCmd) obj;
+
+				if (cmd.hasError()) {
+
+					// throw passed exceptions on client
+					if (cmd.getErrMsg().equals("InactiveException")) {
+						throw new InactiveException("Can't deposit on inactive account");
+					} else if (cmd.getErrMsg().equals("OverdrawException")) {
+						throw new OverdrawException("Insufficient balance");
+					} else if (cmd.getErrMsg().equals("IllegalArgumentException")) {
+						throw new IllegalArgumentException("Can't transfer negativ values!");
+					}
+
+				} else {
+
+					// update both accounts with the balances sent by the server
+					updateBalance(a.getNumber(), cmd.getBalanceFromAccount(), cmd.getVersionFromAccount(), generation);
+					updateBalance(b.getNumber(), cmd.getBalanceToAccount(), cmd.getVersionToAccount(), generation);
+				}
+
+			}
+		}
+
+		@Override
+		public void invalidateCache() {
+			cache.invalidateAll();
+		}
+
+		/**
+		 * Time in ms the copy of the account is served from the cache.
+		 */
+		private long ttl() {
+			// pushed changes invalidate the copies, see onUpdate
+			return driver.isSubscribed() ? AccountCache.FOREVER : AccountCache.DEFAULT_TTL;
+		}
+
+		/**
+		 * Sets the balance of the cached account after a successful command,
+		 * unless the copy already holds a newer state.
+		 */
+		void updateBalance(String number, double balance, long version, long generation) {
+			cache.update(number, version, account -> account.balance = balance, ttl(), generation);
+		}
+
+	}
+
+	public static class Account implements bank.Account {
+
+		private final String number;
+		private final String owner;
+		private volatile double balance;
+		private volatile boolean active = true;
+
+		private final Bank bankRef;
+
+		Account(String owner, String accountNr, Bank bankRef) {
+			this.owner = owner;
+			this.number = accountNr;
+			this.bankRef = bankRef;
+		}
+
+		@Override
+		public double getBalance() {
+			return balance;
+		}
+
+		@Override
+		public String getOwner() {
+			return owner;
+		}
+
+		@Override
+		public String getNumber() {
+			return number;
+		}
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public void deposit(double amount) throws IOException, InactiveException {
+
+			// try to deposit on server side
+			long generation = bankRef.cache.generation();
+			Object obj = bankRef.driver.sendCommand(new DepositCmd(this.number, amount), number);
+
+			if (obj instanceof DepositCmd) {
+				DepositCmd cmd = (DepositCmd) obj;
+
+				// update local value if deposit was successful
+				if (!cmd.isError())
+					bankRef.updateBalance(number, cmd.getNewBalance(), cmd.getNewVersion(), generation);
+				else
+					throw new InactiveException("Can't deposit on inactive account");
+			}
+
+		}
+
+		@Override
+		public void withdraw(double amount) throws IOException, InactiveException, OverdrawException {
+
+			// try to withdraw on server side
+			long generation = bankRef.cache.generation();
+			Object obj = bankRef.driver.sendCommand(new WithdrawCmd(this.number, amount), number);
+
+			if (obj instanceof WithdrawCmd) {
+				WithdrawCmd cmd = (WithdrawCmd) obj;
+
+				// update local value if withdraw was successful
+				if (!cmd.isError())
+					bankRef.updateBalance(number, cmd.getNewBalance(), cmd.getNewVersion(), generation);
+				else {
+					if (cmd.getErrMsg().equals("InactiveException"))
+						throw new InactiveException("Can't withdraw on inactive account");
+					else if (cmd.getErrMsg().equals("OverdrawException"))
+						throw new OverdrawException("Insufficient balance");
+				}
+
+			}
+
+		}
+
+	}
+
+}
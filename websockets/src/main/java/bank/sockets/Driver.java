@@ -10,18 +10,18 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.Base64;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import bank.AccountCache;
 import bank.InactiveException;
 import bank.OverdrawException;
+import bank.SingleFlight;
 import bank.commands.CloseAccountCmd;
 import bank.commands.DepositCmd;
 import bank.commands.GetAccountCmd;
-import bank.commands.GetAccountNumbersCmd;
+import bank.commands.GetChangesSinceCmd;
 import bank.commands.NewAccountCmd;
 import bank.commands.TransferCmd;
 import bank.commands.WithdrawCmd;
@@ -65,12 +65,29 @@ public class Driver implements bank.BankDriver {
 		return bank;
 	}
 
-	static class Bank implements bank.Bank {
+	/**
+	 * Cache of the account copies, e.g. to read its hit and miss counters.
+	 */
+	public AccountCache<Account> getCache() {
+		return bank != null ? bank.cache : null;
+	}
+
+	static class Bank implements bank.CachingBank {
 
 		private final InetAddress HOST;
 		private final int PORT;
 
-		private final Map<String, Account> accounts = new HashMap<>();
+		final AccountCache<Account> cache = new AccountCache<>();
+
+		// active accounts as of the version of the last GetChangesSinceCmd
+		private final Set<String> numbers = ConcurrentHashMap.newKeySet();
+		private volatile long epoch;
+		private volatile long version;
+
+		// reads in flight, shared by concurrent callers
+		private static final String ACCOUNT_NUMBERS = "accountNumbers";
+		private final SingleFlight<String, Set<String>> numberReads = new SingleFlight<>();
+		private final SingleFlight<String, Account> accountReads = new SingleFlight<>();
 
 		public Bank(InetAddress host, int port) {
 			HOST = host;
@@ -81,14 +98,17 @@ public class Driver implements bank.BankDriver {
 		public String createAccount(String owner) throws IOException {
 
 			// create new account on bank server
+			long generation = cache.generation();
 			Object obj = sendCommand(new NewAccountCmd(owner));
 
 			if (obj instanceof NewAccountCmd) {
 				NewAccountCmd response = (NewAccountCmd) obj;
 
 				// save local copy of account
-				Account newAccount = new Account(response.getOwner(), response.getAccountNumber(), this);
-				accounts.put(newAccount.getNumber(), newAccount);
+				Account newAccount = cache.computeIfAbsent(response.getAccountNumber(),
+						nr -> new Account(response.getOwner(), nr, this));
+				cache.validate(newAccount.getNumber(), ttl(), generation);
+				numbers.add(newAccount.getNumber());
 
 				return newAccount.getNumber();
 			}
@@ -100,6 +120,7 @@ public class Driver implements bank.BankDriver {
 		public boolean closeAccount(String number) throws IOException {
 
 			// create new account on bank server
+			long generation = cache.generation();
 			Object obj = sendCommand(new CloseAccountCmd(number));
 
 			if (obj instanceof CloseAccountCmd) {
@@ -109,7 +130,8 @@ public class Driver implements bank.BankDriver {
 				if (cmd.wasClosed()) {
 
 					// update local copy
-					accounts.get(number).active = false;
+					cache.update(number, cmd.getVersion(), account -> account.active = false, ttl(), generation);
+					numbers.remove(number);
 
 					return true;
 				}
@@ -121,27 +143,82 @@ public class Driver implements bank.BankDriver {
 
 		@Override
 		public Set<String> getAccountNumbers() throws IOException {
+			// concurrent callers share one sync, each gets its own copy
+			return new HashSet<String>(numberReads.execute(ACCOUNT_NUMBERS, this::syncAccountNumbers));
+		}
 
-			// only fetch server side account list since
-			// getAccount is able to add non existing accounts on the fly.
-			Object obj = sendCommand(new GetAccountNumbersCmd());
+		private synchronized Set<String> syncAccountNumbers() throws IOException {
 
-			if (obj instanceof GetAccountNumbersCmd) {
-				Set<String> accountList = ((GetAccountNumbersCmd) obj).getAccounts();
+			// only the accounts changed since the last call are sent, their
+			// state is applied to the cached copies as well
+			long generation = cache.generation();
+			Object obj = sendCommand(new GetChangesSinceCmd(epoch, version));
 
-				// update all accounts in list
-				for (String accountNr : accountList)
-					getAccount(accountNr);
+			if (obj instanceof GetChangesSinceCmd) {
+				GetChangesSinceCmd cmd = (GetChangesSinceCmd) obj;
 
-				return accountList;
+				// the server was restarted and sent all accounts again, the
+				// versions of the cached copies belong to the old server
+				if (cmd.getEpoch() != epoch) {
+					numbers.clear();
+					cache.reset();
+				}
+
+				for (GetAccountCmd change : cmd.getAccounts())
+					applyChange(change, generation);
+
+				epoch = cmd.getEpoch();
+				version = cmd.getHeadVersion();
 			}
 
-			return new HashSet<String>();
+			return new HashSet<String>(numbers);
+		}
+
+		/**
+		 * Updates the cached copy and the list of active accounts with a change
+		 * sent by the server.
+		 */
+		private void applyChange(GetAccountCmd change, long generation) {
+			Account account = applyState(change, generation);
+
+			// the copy may already hold a newer state than the change
+			if (account.isActive())
+				numbers.add(change.getNumber());
+			else
+				numbers.remove(change.getNumber());
+		}
+
+		/**
+		 * Writes the state sent by the server to the cached copy, unless the
+		 * copy already holds a newer state.
+		 */
+		private Account applyState(GetAccountCmd state, long generation) {
+			Account account = cache.computeIfAbsent(state.getNumber(), nr -> new Account(state.getOwner(), nr, this));
+
+			cache.update(state.getNumber(), state.getVersion(), a -> {
+				a.balance = state.getBalance();
+				a.active = state.isActive();
+			}, ttl(), generation);
+
+			return account;
 		}
 
 		@Override
 		public Account getAccount(String number) throws IOException {
 
+			// served locally as long as the cached copy is valid
+			Account cached = cache.lookup(number);
+			if (cached != null)
+				return cached;
+
+			// concurrent callers of the same account share one request
+			return accountReads.execute(number, () -> fetchAccount(number));
+		}
+
+		private Account fetchAccount(String number) throws IOException {
+
+			long generation = cache.generation();
+
 			// request account details from bank server
 			Object obj = sendCommand(new GetAccountCmd(number));
 
@@ -151,21 +228,9 @@ public class Driver implements bank.BankDriver {
 				// check if account exists on server
 				if(!cmd.accountFound())
 					return null;
-				
-				Account account;
 
 				// add account to local bank or update existing one
-				if (!accounts.containsKey(cmd.getNumber())) {
-					account = new Account(cmd.getOwner(), cmd.getNumber(), this);
-					accounts.put(account.getNumber(), account);
-				} else {
-					account = accounts.get(cmd.getNumber());
-				}
-
-				account.balance = cmd.getBalance();
-				account.active = cmd.isActive();
-
-				return account;
+				return applyState(cmd, generation);
 			}
 
 			return null;
@@ -178,11 +243,11 @@ public class Driver implements bank.BankDriver {
 			DataOutputStream out = new DataOutputStream(bankServer.getOutputStream());
 
 			// send command to server
-			out.writeUTF(serialize(cmd));
+			writeFrame(out, serialize(cmd));
 
 			// get answer
 			try {
-				return deserialize(in.readUTF());
+				return deserialize(readFrame(in));
 			} catch (ClassNotFoundException e) {
 				e.printStackTrace();
 			} finally {
@@ -196,6 +261,8 @@ public class Driver implements bank.BankDriver {
 		public void transfer(bank.Account a, bank.Account b, double amount)
 				throws IOException, IllegalArgumentException, OverdrawException, InactiveException {
 
+			long generation = cache.generation();
+
 			// using deposit and withdraw is not 100% safe here
 			Object obj = sendCommand(new TransferCmd(a.getNumber(), b.getNumber(), amount));
 
@@ -216,21 +283,42 @@ public class Driver implements bank.BankDriver {
 
 				} else {
 					
-					// update all accounts
-					getAccountNumbers();
+					// update both accounts with the balances sent by the server
+					updateBalance(a.getNumber(), cmd.getBalanceFromAccount(), cmd.getVersionFromAccount(), generation);
+					updateBalance(b.getNumber(), cmd.getBalanceToAccount(), cmd.getVersionToAccount(), generation);
 				}
 
 			}
 		}
 
+		@Override
+		public void invalidateCache() {
+			cache.invalidateAll();
+		}
+
+		/**
+		 * Time in ms the copy of the account is served from the cache.
+		 */
+		private long ttl() {
+			return AccountCache.DEFAULT_TTL;
+		}
+
+		/**
+		 * Sets the balance of the cached account after a successful command,
+		 * unless the copy already holds a newer state.
+		 */
+		void updateBalance(String number, double balance, long version, long generation) {
+			cache.update(number, version, account -> account.balance = balance, ttl(), generation);
+		}
+
 	}
 
 	public static class Account implements bank.Account {
 
-		private String number;
-		private String owner;
-		private double balance;
-		private boolean active = true;
+		private final String number;
+		private final String owner;
+		private volatile double balance;
+		private volatile boolean active = true;
 
 		private final Bank bankRef;
 
@@ -266,6 +354,7 @@ public class Driver implements bank.BankDriver {
 			try {
 
 				// try to deposit on server side
+				long generation = bankRef.cache.generation();
 				Object obj = bankRef.sendCommand(new DepositCmd(this.number, amount));
 
 				if (obj instanceof DepositCmd) {
@@ -273,7 +362,7 @@ public class Driver implements bank.BankDriver {
 
 					// update local value if deposit was successful
 					if (!cmd.isError())
-						this.balance = cmd.getNewBalance();
+						bankRef.updateBalance(number, cmd.getNewBalance(), cmd.getNewVersion(), generation);
 					else
 						throw new InactiveException("Can't deposit on inactive account");
 				}
@@ -290,6 +379,7 @@ public class Driver implements bank.BankDriver {
 			try {
 
 				// try to withdraw on server side
+				long generation = bankRef.cache.generation();
 				Object obj = bankRef.sendCommand(new WithdrawCmd(this.number, amount));
 
 				if (obj instanceof WithdrawCmd) {
@@ -297,7 +387,7 @@ public class Driver implements bank.BankDriver {
 
 					// update local value if deposit was successful
 					if (!cmd.isError())
-						this.balance = cmd.getNewBalance();
+						bankRef.updateBalance(number, cmd.getNewBalance(), cmd.getNewVersion(), generation);
 					else {
 						if (cmd.getErrMsg().equals("InactiveException"))
 							throw new InactiveException("Can't withdraw on inactive account");
@@ -315,20 +405,43 @@ public class Driver implements bank.BankDriver {
 
 	}
 	
-	private static String serialize(Serializable o) throws IOException {
+	private static byte[] serialize(Serializable o) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ObjectOutputStream oos = new ObjectOutputStream(baos);
 		oos.writeObject(o);
 		oos.close();
-		return Base64.getEncoder().encodeToString(baos.toByteArray());
+		return baos.toByteArray();
 	}
 
-	private static Object deserialize(String s) throws IOException, ClassNotFoundException {
-		byte[] data = Base64.getDecoder().decode(s);
+	private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
 		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
 		Object o = ois.readObject();
 		ois.close();
 		return o;
 	}
 
+	/**
+	 * Writes the data as frame: its length followed by the data. Unlike
+	 * writeUTF, which is limited to 64 KB, a frame can hold the change list
+	 * of a large bank.
+	 */
+	static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+	}
+
+	/**
+	 * Reads a frame written by {@link #writeFrame(DataOutputStream, byte[])}.
+	 */
+	static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Invalid frame length " + length);
+
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
 }
@@ -0,0 +1,96 @@
+package ch.fhwn.vesys.websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glassfish.tyrus.core.frame.Frame;
+import org.glassfish.tyrus.ext.extension.deflate.PerMessageDeflateExtension;
+
+/**
+ * permessage-deflate extension (RFC 7692) which leaves small messages
+ * uncompressed. Compressing a frame of a few bytes costs more CPU than it
+ * saves on the wire, the per-message header of the extension would even make
+ * it larger. Uncompressed messages are sent without the RSV1 bit, which the
+ * extension allows for every single message.
+ *
+ * The extension also counts the payload bytes before and after compression in
+ * both directions, see {@link #getWireBytes()} and {@link #getRawBytes()}.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class DeflateExtension extends PerMessageDeflateExtension {
+
+	// payload size in bytes from which messages are compressed
+	public static final int DEFAULT_THRESHOLD = Integer.getInteger("bank.ws.deflateThreshold", 256);
+
+	private static final byte TEXT = 0x01;
+	private static final byte BINARY = 0x02;
+
+	private final int threshold;
+
+	private final AtomicLong rawBytes = new AtomicLong();
+	private final AtomicLong wireBytes = new AtomicLong();
+
+	public DeflateExtension() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold payload size in bytes from which messages are
+	 *            compressed, {@link Integer#MAX_VALUE} never compresses
+	 */
+	public DeflateExtension(int threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	public Frame processOutgoing(ExtensionContext context, Frame frame) {
+		if (frame.isControlFrame())
+			return frame;
+
+		rawBytes.addAndGet(frame.getPayloadLength());
+
+		// only complete messages may be left uncompressed, fragments of a
+		// compressed message have to be compressed as well
+		if (frame.isFin() && (frame.getOpcode() == TEXT || frame.getOpcode() == BINARY)
+				&& frame.getPayloadLength() < threshold) {
+			wireBytes.addAndGet(frame.getPayloadLength());
+			return frame;
+		}
+
+		Frame compressed = super.processOutgoing(context, frame);
+		wireBytes.addAndGet(compressed.getPayloadLength());
+		return compressed;
+	}
+
+	@Override
+	public Frame processIncoming(ExtensionContext context, Frame frame) {
+		if (frame.isControlFrame())
+			return frame;
+
+		wireBytes.addAndGet(frame.getPayloadLength());
+
+		Frame decompressed = super.processIncoming(context, frame);
+		rawBytes.addAndGet(decompressed.getPayloadLength());
+		return decompressed;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Payload bytes of the messages as seen by the application.
+	 */
+	public long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	/**
+	 * Payload bytes of the messages as sent over the connection.
+	 */
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+
+}
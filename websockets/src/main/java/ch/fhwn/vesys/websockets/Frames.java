@@ -0,0 +1,56 @@
+package ch.fhwn.vesys.websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import bank.commands.CommandCodec;
+
+/**
+ * Layout of the binary frames exchanged between the WebSocket bank driver and
+ * the bank server. Every frame starts with the request id (int) followed by
+ * the command in the {@link CommandCodec} encoding. The server answers with
+ * the id of the request, so a client can have many requests in flight on one
+ * connection and match the responses as they arrive.
+ *
+ * Frames sent by the server with the id {@link #EVENT} are not responses but
+ * account change events (a {@link bank.commands.GetAccountCmd} with the new
+ * state of the account) pushed to subscribed clients.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public final class Frames {
+
+	public static final int EVENT = 0;
+
+	private Frames() {
+	}
+
+	public static ByteBuffer encode(int requestId, Object command) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(requestId);
+		CommandCodec.write(command, out);
+		out.close();
+		return ByteBuffer.wrap(baos.toByteArray());
+	}
+
+	/**
+	 * Reads the request id, the buffer is positioned at the command afterwards.
+	 */
+	public static int requestId(ByteBuffer frame) {
+		return frame.getInt();
+	}
+
+	/**
+	 * Decodes the command following the request id.
+	 */
+	public static Object command(ByteBuffer frame) throws IOException {
+		byte[] data = new byte[frame.remaining()];
+		frame.get(data);
+		return CommandCodec.decode(data);
+	}
+
+}
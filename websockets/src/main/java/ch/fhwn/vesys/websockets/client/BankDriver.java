@@ -1,66 +1,118 @@
 package ch.fhwn.vesys.websockets.client;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
 import javax.websocket.DeploymentException;
+import javax.websocket.Extension;
 import javax.websocket.Session;
 
 import org.glassfish.tyrus.client.ClientManager;
 
-import bank.BankDriver2;
+import ch.fhwn.vesys.websockets.DeflateExtension;
+import ch.fhwn.vesys.websockets.Frames;
+
+import bank.AccountCache;
+import bank.FilteredBankDriver;
 import bank.InactiveException;
 import bank.OverdrawException;
+import bank.SingleFlight;
 import bank.commands.CloseAccountCmd;
 import bank.commands.DepositCmd;
 import bank.commands.GetAccountCmd;
-import bank.commands.GetAccountNumbersCmd;
+import bank.commands.GetChangesSinceCmd;
 import bank.commands.NewAccountCmd;
+import bank.commands.SubscribeCmd;
 import bank.commands.TransferCmd;
 import bank.commands.WithdrawCmd;
 
-public class BankDriver implements BankDriver2 {
+public class BankDriver implements FilteredBankDriver {
+
+	private static final long TIMEOUT = 10000;
 
-	static Session session = null;
+	private Session session = null;
 	private Bank bank = null;
 
+	// responses are matched to their requests by id, so the requests of all
+	// threads share the connection without waiting for each other
+	private final Map<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+	private final AtomicInteger requestIds = new AtomicInteger();
+
+	private final List<UpdateHandler> handlers = new CopyOnWriteArrayList<>();
+	private final List<Filter> filters = new CopyOnWriteArrayList<>();
+	private volatile boolean subscribed = false;
+
+	// handlers are not called on the thread receiving the frames, a handler
+	// which sends a command would otherwise wait for its own response forever
+	private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "bank-update-dispatcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final DeflateExtension deflate;
+
+	public BankDriver() {
+		this(new DeflateExtension());
+	}
+
+	/**
+	 * @param deflate permessage-deflate extension offered to the server,
+	 *            <code>null</code> disables compression
+	 */
+	public BankDriver(DeflateExtension deflate) {
+		this.deflate = deflate;
+	}
+
 	@Override
 	public void connect(String[] args) throws IOException {
 
-		ClientManager client = ClientManager.createClient();
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
 
-		final ClientEndpointConfig cec = ClientEndpointConfig.Builder.create().build();
+		ClientManager client = ClientManager.createClient();
 
-		try {
-			session = client.connectToServer(ClientWebSocketEndpoint.class, cec,
-					new URI("ws://localhost:8888/server/bank"));
+		List<Extension> extensions = new ArrayList<>();
+		if (deflate != null)
+			extensions.add(deflate);
 
-			// I can't get a active connection and can't find the issue
-			// Caused by: java.net.ConnectException: Connection refused: no further information
+		final ClientEndpointConfig cec = ClientEndpointConfig.Builder.create().extensions(extensions).build();
 
+		try {
+			session = client.connectToServer(new ClientWebSocketEndpoint(this), cec,
+					new URI("ws://" + host + ":" + port + "/server/bank"));
 		} catch (DeploymentException | URISyntaxException e) {
-			e.printStackTrace();
+			throw new IOException("Could not connect to " + host + ":" + port, e);
 		}
+
+		bank = new Bank(this);
 	}
 
 	@Override
 	public void disconnect() throws IOException {
 		if (session != null && session.isOpen())
 			session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Bye"));
+
+		dispatcher.shutdown();
 	}
 
 	@Override
@@ -68,30 +120,204 @@ public class BankDriver implements BankDriver2 {
 		return bank;
 	}
 
+	/**
+	 * Cache of the account copies, e.g. to read its hit and miss counters.
+	 */
+	public AccountCache<Account> getCache() {
+		return bank != null ? bank.cache : null;
+	}
+
 	@Override
 	public void registerUpdateHandler(UpdateHandler handler) throws IOException {
+		handlers.add(handler);
+
+		// the server pushes changes once the connection is subscribed
+		synchronized (this) {
+			if (!subscribed) {
+				sendCommand(new SubscribeCmd());
+				subscribed = true;
+			}
+		}
+	}
+
+	@Override
+	public void registerUpdateHandler(Set<String> accounts, Set<String> owners, UpdateHandler handler)
+			throws IOException {
+		Filter filter = new Filter(accounts, owners, handler);
+		if (filter.accounts.isEmpty() && filter.owners.isEmpty())
+			return;
+
+		// the server only pushes the changes of the selected accounts
+		sendCommand(new SubscribeCmd(filter.accounts, filter.owners));
+		filters.add(filter);
+	}
+
+	/**
+	 * Whether the server pushes the changes of the given account.
+	 */
+	boolean isTracked(String number, String owner) {
+		if (subscribed)
+			return true;
+
+		for (Filter filter : filters) {
+			if (filter.matches(number, owner))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sends the command and waits for the response with the same request id.
+	 */
+	Object sendCommand(Serializable cmd) throws IOException {
+		int requestId = nextRequestId();
+		CompletableFuture<Object> response = new CompletableFuture<>();
+		pending.put(requestId, response);
+
+		try {
+			ByteBuffer frame = Frames.encode(requestId, cmd);
+
+			// the basic remote must not be used by several threads at once,
+			// the lock is only held while the frame is written
+			synchronized (session) {
+				session.getBasicRemote().sendBinary(frame);
+			}
+
+			return response.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for response", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Connection failed", e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("No response from server within " + TIMEOUT + "ms", e);
+		} finally {
+			pending.remove(requestId);
+		}
+	}
+
+	private int nextRequestId() {
+		int id;
+		do {
+			id = requestIds.incrementAndGet();
+		} while (id == 0); // skip 0 after an overflow
+		return id;
+	}
+
+	/**
+	 * Called by the endpoint for every binary frame received from the server.
+	 */
+	void onMessage(ByteBuffer message) {
+		try {
+			int requestId = Frames.requestId(message);
+
+			if (requestId == Frames.EVENT) {
+				onEvent((GetAccountCmd) Frames.command(message));
+				return;
+			}
+
+			CompletableFuture<Object> response = pending.get(requestId);
+
+			// late responses of requests which timed out are dropped
+			if (response != null)
+				response.complete(Frames.command(message));
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Applies a pushed account change to the cached account before the
+	 * handlers are informed, so they see the new state without asking the
+	 * server again. An event overtaken by a newer one of the same account is
+	 * dropped, the handlers were informed of the newer one already.
+	 */
+	private void onEvent(GetAccountCmd event) {
+		Bank bank = this.bank;
+		if (bank != null && !bank.apply(event))
+			return;
+
+		String number = event.getNumber();
+		String owner = event.getOwner();
+		dispatcher.execute(() -> {
+			try {
+				for (UpdateHandler handler : handlers)
+					handler.accountChanged(number);
+
+				for (Filter filter : filters) {
+					if (filter.matches(number, owner))
+						filter.handler.accountChanged(number);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	private static class Filter {
+		final Set<String> accounts;
+		final Set<String> owners;
+		final UpdateHandler handler;
+
+		Filter(Set<String> accounts, Set<String> owners, UpdateHandler handler) {
+			this.accounts = accounts != null ? new HashSet<>(accounts) : new HashSet<>();
+			this.owners = owners != null ? new HashSet<>(owners) : new HashSet<>();
+			this.handler = handler;
+		}
+
+		boolean matches(String number, String owner) {
+			return accounts.contains(number) || owners.contains(owner);
+		}
+	}
+
+	/**
+	 * Called by the endpoint when the connection is closed, fails all requests
+	 * still waiting for a response.
+	 */
+	void onClose(CloseReason reason) {
+		IOException e = new IOException("Connection closed: " + reason);
+		for (CompletableFuture<Object> response : pending.values())
+			response.completeExceptionally(e);
 	}
 
-	static class Bank implements bank.Bank {
+	static class Bank implements bank.CachingBank {
 		
-		private final Map<String, Account> accounts = new HashMap<>();
+		final AccountCache<Account> cache = new AccountCache<>();
+
+		// active accounts as of the version of the last GetChangesSinceCmd
+		private final Set<String> numbers = ConcurrentHashMap.newKeySet();
+		private volatile long epoch;
+		private volatile long version;
+
+		// reads in flight, shared by concurrent callers
+		private static final String ACCOUNT_NUMBERS = "accountNumbers";
+		private final SingleFlight<String, Set<String>> numberReads = new SingleFlight<>();
+		private final SingleFlight<String, Account> accountReads = new SingleFlight<>();
+
+		private final BankDriver driver;
 
-		public Bank(InetAddress host, int port) {
+		Bank(BankDriver driver) {
+			this.driver = driver;
 		}
 
 		@Override
 		public String createAccount(String owner) throws IOException {
 
 			// create new account on bank server
+			long generation = cache.generation();
 			Object obj = sendCommand(new NewAccountCmd(owner));
 
 			if (obj instanceof NewAccountCmd) {
 				NewAccountCmd response = (NewAccountCmd) obj;
 
 				// save local copy of account
-				Account newAccount = new Account(response.getOwner(), response.getAccountNumber(), this);
-				accounts.put(newAccount.getNumber(), newAccount);
+				Account newAccount = cache.computeIfAbsent(response.getAccountNumber(),
+						nr -> new Account(response.getOwner(), nr, this));
+				cache.validate(newAccount.getNumber(), ttl(newAccount), generation);
+				numbers.add(newAccount.getNumber());
 
 				return newAccount.getNumber();
 			}
@@ -103,6 +329,7 @@ public class BankDriver implements BankDriver2 {
 		public boolean closeAccount(String number) throws IOException {
 
 			// create new account on bank server
+			long generation = cache.generation();
 			Object obj = sendCommand(new CloseAccountCmd(number));
 
 			if (obj instanceof CloseAccountCmd) {
@@ -112,7 +339,10 @@ public class BankDriver implements BankDriver2 {
 				if (cmd.wasClosed()) {
 
 					// update local copy
-					accounts.get(number).active = false;
+					Account account = cache.get(number);
+					if (account != null)
+						cache.update(number, cmd.getVersion(), a -> a.active = false, ttl(account), generation);
+					numbers.remove(number);
 
 					return true;
 				}
@@ -124,27 +354,82 @@ public class BankDriver implements BankDriver2 {
 
 		@Override
 		public Set<String> getAccountNumbers() throws IOException {
+			// concurrent callers share one sync, each gets its own copy
+			return new HashSet<String>(numberReads.execute(ACCOUNT_NUMBERS, this::syncAccountNumbers));
+		}
+
+		private synchronized Set<String> syncAccountNumbers() throws IOException {
 
-			// only fetch server side account list since
-			// getAccount is able to add non existing accounts on the fly.
-			Object obj = sendCommand(new GetAccountNumbersCmd());
+			// only the accounts changed since the last call are sent, their
+			// state is applied to the cached copies as well
+			long generation = cache.generation();
+			Object obj = sendCommand(new GetChangesSinceCmd(epoch, version));
 
-			if (obj instanceof GetAccountNumbersCmd) {
-				Set<String> accountList = ((GetAccountNumbersCmd) obj).getAccounts();
+			if (obj instanceof GetChangesSinceCmd) {
+				GetChangesSinceCmd cmd = (GetChangesSinceCmd) obj;
 
-				// update all accounts in list
-				for (String accountNr : accountList)
-					getAccount(accountNr);
+				// the server was restarted and sent all accounts again, the
+				// versions of the cached copies belong to the old server
+				if (cmd.getEpoch() != epoch) {
+					numbers.clear();
+					cache.reset();
+				}
 
-				return accountList;
+				for (GetAccountCmd change : cmd.getAccounts())
+					applyChange(change, generation);
+
+				epoch = cmd.getEpoch();
+				version = cmd.getHeadVersion();
 			}
 
-			return new HashSet<String>();
+			return new HashSet<String>(numbers);
+		}
+
+		/**
+		 * Updates the cached copy and the list of active accounts with a change
+		 * sent by the server.
+		 */
+		private void applyChange(GetAccountCmd change, long generation) {
+			Account account = applyState(change, generation);
+
+			// the copy may already hold a newer state than the change
+			if (account.isActive())
+				numbers.add(change.getNumber());
+			else
+				numbers.remove(change.getNumber());
+		}
+
+		/**
+		 * Writes the state sent by the server to the cached copy, unless the
+		 * copy already holds a newer state.
+		 */
+		private Account applyState(GetAccountCmd state, long generation) {
+			Account account = cache.computeIfAbsent(state.getNumber(), nr -> new Account(state.getOwner(), nr, this));
+
+			cache.update(state.getNumber(), state.getVersion(), a -> {
+				a.balance = state.getBalance();
+				a.active = state.isActive();
+			}, ttl(account), generation);
+
+			return account;
 		}
 
 		@Override
 		public Account getAccount(String number) throws IOException {
 
+			// served locally as long as the cached copy is valid
+			Account cached = cache.lookup(number);
+			if (cached != null)
+				return cached;
+
+			// concurrent callers of the same account share one request
+			return accountReads.execute(number, () -> fetchAccount(number));
+		}
+
+		private Account fetchAccount(String number) throws IOException {
+
+			long generation = cache.generation();
+
 			// request account details from bank server
 			Object obj = sendCommand(new GetAccountCmd(number));
 
@@ -155,36 +440,40 @@ public class BankDriver implements BankDriver2 {
 				if (!cmd.accountFound())
 					return null;
 
-				Account account;
-
 				// add account to local bank or update existing one
-				if (!accounts.containsKey(cmd.getNumber())) {
-					account = new Account(cmd.getOwner(), cmd.getNumber(), this);
-					accounts.put(account.getNumber(), account);
-				} else {
-					account = accounts.get(cmd.getNumber());
-				}
-
-				account.balance = cmd.getBalance();
-				account.active = cmd.isActive();
-
-				return account;
+				return applyState(cmd, generation);
 			}
 
 			return null;
 		}
 
-		public Object sendCommand(Serializable cmd) throws IOException {
-
-			session.getBasicRemote().sendText(serialize(cmd));
+		/**
+		 * Applies a change pushed by the server to the cached copy, the copy
+		 * stays valid until the next change is pushed. Events are sent by
+		 * several server threads and may arrive out of order, an event older
+		 * than the copy is ignored.
+		 *
+		 * @return false if the event was ignored
+		 */
+		boolean apply(GetAccountCmd event) {
+			cache.computeIfAbsent(event.getNumber(), nr -> new Account(event.getOwner(), nr, this));
+
+			return cache.update(event.getNumber(), event.getVersion(), a -> {
+				a.balance = event.getBalance();
+				a.active = event.isActive();
+			}, AccountCache.FOREVER, cache.generation());
+		}
 
-			return null; // TODO: get appropriate answer
+		Object sendCommand(Serializable cmd) throws IOException {
+			return driver.sendCommand(cmd);
 		}
 
 		@Override
 		public void transfer(bank.Account a, bank.Account b, double amount)
 				throws IOException, IllegalArgumentException, OverdrawException, InactiveException {
 
+			long generation = cache.generation();
+
 			// using deposit and withdraw is not 100% safe here
 			Object obj = sendCommand(new TransferCmd(a.getNumber(), b.getNumber(), amount));
 
@@ -201,25 +490,52 @@ public class BankDriver implements BankDriver2 {
 						throw new OverdrawException("Insufficient balance");
 					} else if (cmd.getErrMsg().equals("IllegalArgumentException")) {
 						throw new IllegalArgumentException("Can't transfer negativ values!");
+					} else {
+						throw new IOException("Transfer failed on server: " + cmd.getErrMsg());
 					}
 
 				} else {
 
-					// update all accounts
-					getAccountNumbers();
+					// update both accounts with the balances sent by the server
+					updateBalance(a.getNumber(), cmd.getBalanceFromAccount(), cmd.getVersionFromAccount(), generation);
+					updateBalance(b.getNumber(), cmd.getBalanceToAccount(), cmd.getVersionToAccount(), generation);
 				}
 
 			}
 		}
 
+		@Override
+		public void invalidateCache() {
+			cache.invalidateAll();
+		}
+
+		/**
+		 * Time in ms the copy of the account is served from the cache.
+		 */
+		private long ttl(Account account) {
+			// pushed changes are applied to the copies, see onEvent
+			return driver.isTracked(account.getNumber(), account.getOwner()) ? AccountCache.FOREVER
+					: AccountCache.DEFAULT_TTL;
+		}
+
+		/**
+		 * Sets the balance of the cached account after a successful command,
+		 * unless the copy already holds a newer state.
+		 */
+		void updateBalance(String number, double balance, long version, long generation) {
+			Account account = cache.get(number);
+			if (account != null)
+				cache.update(number, version, a -> a.balance = balance, ttl(account), generation);
+		}
+
 	}
 
 	public static class Account implements bank.Account {
 
-		private String number;
-		private String owner;
-		private double balance;
-		private boolean active = true;
+		private final String number;
+		private final String owner;
+		private volatile double balance;
+		private volatile boolean active = true;
 
 		private final Bank bankRef;
 
@@ -255,6 +571,7 @@ public class BankDriver implements BankDriver2 {
 			try {
 
 				// try to deposit on server side
+				long generation = bankRef.cache.generation();
 				Object obj = bankRef.sendCommand(new DepositCmd(this.number, amount));
 
 				if (obj instanceof DepositCmd) {
@@ -262,7 +579,7 @@ public class BankDriver implements BankDriver2 {
 
 					// update local value if deposit was successful
 					if (!cmd.isError())
-						this.balance = cmd.getNewBalance();
+						bankRef.updateBalance(number, cmd.getNewBalance(), cmd.getNewVersion(), generation);
 					else
 						throw new InactiveException("Can't deposit on inactive account");
 				}
@@ -279,6 +596,7 @@ public class BankDriver implements BankDriver2 {
 			try {
 
 				// try to withdraw on server side
+				long generation = bankRef.cache.generation();
 				Object obj = bankRef.sendCommand(new WithdrawCmd(this.number, amount));
 
 				if (obj instanceof WithdrawCmd) {
@@ -286,7 +604,7 @@ public class BankDriver implements BankDriver2 {
 
 					// update local value if deposit was successful
 					if (!cmd.isError())
-						this.balance = cmd.getNewBalance();
+						bankRef.updateBalance(number, cmd.getNewBalance(), cmd.getNewVersion(), generation);
 					else {
 						if (cmd.getErrMsg().equals("InactiveException"))
 							throw new InactiveException("Can't withdraw on inactive account");
@@ -304,20 +622,4 @@ public class BankDriver implements BankDriver2 {
 
 	}
 
-	private static String serialize(Serializable o) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(baos);
-		oos.writeObject(o);
-		oos.close();
-		return Base64.getEncoder().encodeToString(baos.toByteArray());
-	}
-
-	private static Object deserialize(String s) throws IOException, ClassNotFoundException {
-		byte[] data = Base64.getDecoder().decode(s);
-		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-		Object o = ois.readObject();
-		ois.close();
-		return o;
-	}
-
 }
@@ -1,8 +1,8 @@
 package ch.fhwn.vesys.websockets.client;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import javax.websocket.CloseReason;
 import javax.websocket.Endpoint;
 import javax.websocket.EndpointConfig;
 import javax.websocket.MessageHandler;
@@ -10,15 +10,16 @@ import javax.websocket.PongMessage;
 import javax.websocket.Session;
 
 public class ClientWebSocketEndpoint extends Endpoint {  
+
+    private final BankDriver driver;
+
+    public ClientWebSocketEndpoint(BankDriver driver) {
+        this.driver = driver;
+    }
+
     @Override
     public void onOpen(final Session session, EndpointConfig config) {
 
-        try {
-            session.getBasicRemote().sendText("Joining");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
         session.addMessageHandler(new MessageHandler.Whole<String>() {
             @Override
             public void onMessage(String message) {
@@ -30,18 +31,21 @@ public class ClientWebSocketEndpoint extends Endpoint {
             }
         });
 
-        new Thread(new Runnable() {
+        session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
             @Override
-            public void run() {
-                ByteBuffer buffer = ByteBuffer.allocate(1);
-                buffer.put((byte) 0xFF);
-                try {
-                    session.getBasicRemote().sendPing(buffer);
-                    Thread.sleep(2000);
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
+            public void onMessage(ByteBuffer message) {
+                driver.onMessage(message);
             }
-        }).start();
+        });
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason) {
+        driver.onClose(closeReason);
+    }
+
+    @Override
+    public void onError(Session session, Throwable thr) {
+        thr.printStackTrace();
     }
 }
\ No newline at end of file
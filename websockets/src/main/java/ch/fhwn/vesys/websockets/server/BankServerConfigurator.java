@@ -0,0 +1,52 @@
+package ch.fhwn.vesys.websockets.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.websocket.Extension;
+import javax.websocket.server.ServerEndpointConfig;
+
+import ch.fhwn.vesys.websockets.DeflateExtension;
+
+/**
+ * Creates the endpoint instances for the bank server. Tyrus creates one
+ * endpoint per session, the configurator injects the bank of the server into
+ * each of them so that all clients work on the same accounts. Tyrus creates
+ * the configurator once per deployed endpoint, so every server started in the
+ * same JVM has its own bank, subscriptions and metrics.
+ *
+ * Clients which request permessage-deflate get it, messages smaller than the
+ * threshold of the {@link DeflateExtension} are sent uncompressed.
+ */
+public class BankServerConfigurator extends ServerEndpointConfig.Configurator {
+
+	private final BankServerEndpoint.Bank bank = new BankServerEndpoint.Bank();
+	private final SubscriptionIndex subscribers = new SubscriptionIndex();
+	private final CommandMetrics metrics = new CommandMetrics(BankServerEndpoint.TRANSPORT);
+
+	// the extension keeps its state per connection, one instance serves all sessions
+	private static final DeflateExtension DEFLATE = new DeflateExtension();
+
+	@Override
+	public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+		if (endpointClass == BankServerEndpoint.class)
+			return endpointClass.cast(new BankServerEndpoint(bank, subscribers, metrics));
+
+		return super.getEndpointInstance(endpointClass);
+	}
+
+	@Override
+	public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+		List<Extension> negotiated = new ArrayList<>(super.getNegotiatedExtensions(installed, requested));
+
+		for (Extension extension : requested) {
+			if (DEFLATE.getName().equals(extension.getName())) {
+				negotiated.add(DEFLATE);
+				break;
+			}
+		}
+
+		return negotiated;
+	}
+
+}
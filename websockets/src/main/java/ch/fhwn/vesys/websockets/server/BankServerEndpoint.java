@@ -6,86 +6,140 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
+import ch.fhwn.vesys.websockets.Frames;
+
 import bank.InactiveException;
 import bank.OverdrawException;
 import bank.commands.CloseAccountCmd;
 import bank.commands.DepositCmd;
 import bank.commands.GetAccountCmd;
 import bank.commands.GetAccountNumbersCmd;
+import bank.commands.GetChangesSinceCmd;
 import bank.commands.NewAccountCmd;
+import bank.commands.SubscribeCmd;
 import bank.commands.TransferCmd;
 import bank.commands.WithdrawCmd;
 
-@ServerEndpoint("/bank")
+/**
+ * WebSocket endpoint of the bank server. Tyrus creates one instance per
+ * session, all instances of a server share the thread-safe bank, the
+ * subscriptions and the metrics injected by {@link BankServerConfigurator},
+ * so commands may be executed concurrently by the container's worker threads.
+ */
+@ServerEndpoint(value = "/bank", configurator = BankServerConfigurator.class)
 public class BankServerEndpoint {
 
-	private Bank bank;
-	private static List<Session> connectedSessions = new ArrayList<Session>();
+	// outbound messages per session and time in ms until a send is considered stalled
+	private static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("bank.ws.outboundQueue", 1024);
+	private static final long SEND_TIMEOUT = Long.getLong("bank.ws.sendTimeout", 5000);
+
+	private static final String SENDER = "sender";
+
+	static final String TRANSPORT = "websockets";
+
+	private final Bank bank;
+	private final SubscriptionIndex subscribers;
+	private final CommandMetrics metrics;
+
+	public BankServerEndpoint(Bank bank, SubscriptionIndex subscribers, CommandMetrics metrics) {
+		this.bank = bank;
+		this.subscribers = subscribers;
+		this.metrics = metrics;
+	}
 
 	@OnOpen
 	public void onOpen(Session session) throws IOException {
-		bank = new Bank();
+		StageEvent accept = StageEvent.begin(TRANSPORT, StageEvent.ACCEPT);
+		session.getUserProperties().put(SENDER, new SessionSender(session, OUTBOUND_QUEUE_CAPACITY, SEND_TIMEOUT));
+		accept.end(null, 0);
+	}
+
+	@OnClose
+	public void onClose(Session session) {
+		subscribers.remove(session);
+	}
+
+	/**
+	 * The session stays open after an error, so its subscriptions are kept
+	 * until {@link #onClose(Session)}.
+	 */
+	@OnError
+	public void onError(Session session, Throwable t) {
+		t.printStackTrace();
 	}
 
 	@OnMessage
 	public void getMessage(final String message, final Session session) {
+		handleRequest(message, session);
+	}
 
-		// add session if not exits
-		if (!connectedSessions.contains(session)) {
-			connectedSessions.add(session);
-		}
+	@OnMessage
+	public void getMessage(final ByteBuffer message, final Session session) {
+		long arrival = System.nanoTime();
+		try {
+			// binary frames carry a request id and the command, see Frames
+			int length = message.remaining();
+			int requestId = Frames.requestId(message);
 
-		handleRequest(message, session);
+			StageEvent decode = StageEvent.begin(TRANSPORT, StageEvent.DESERIALIZE);
+			Object command = Frames.command(message);
+			decode.end(command, length);
+
+			Serializable responseCommand = handleCommand(command, session, arrival);
+
+			StageEvent encode = StageEvent.begin(TRANSPORT, StageEvent.SERIALIZE);
+			ByteBuffer response = Frames.encode(requestId, responseCommand);
+			encode.end(responseCommand, response.remaining());
+
+			StageEvent write = StageEvent.begin(TRANSPORT, StageEvent.WRITE);
+			int responseLength = response.remaining();
+			sender(session).send(response);
+			write.end(responseCommand, responseLength);
+
+			notifySubscribers(responseCommand);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Processes requests send by clients.
+	 * Processes requests send by clients as Base64 text.
 	 */
 	private void handleRequest(String commandString, Session session) {
+		long arrival = System.nanoTime();
 		try {
 
 			if (commandString != null) {
-				// last line is content
+				StageEvent decode = StageEvent.begin(TRANSPORT, StageEvent.DESERIALIZE);
 				Object command = deserialize(commandString);
-				Serializable responseCommand = null;
+				decode.end(command, commandString.length());
 
-				if (command instanceof NewAccountCmd) {
-					responseCommand = handleNewAccountCommand((NewAccountCmd) command);
+				Serializable responseCommand = handleCommand(command, session, arrival);
 
-				} else if (command instanceof GetAccountCmd) {
-					responseCommand = handleGetAccountCommand((GetAccountCmd) command);
-
-				} else if (command instanceof GetAccountNumbersCmd) {
-					responseCommand = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
-
-				} else if (command instanceof DepositCmd) {
-					responseCommand = handleDepositCommand((DepositCmd) command);
-
-				} else if (command instanceof WithdrawCmd) {
-					responseCommand = handleWithdrawCommand((WithdrawCmd) command);
-
-				} else if (command instanceof CloseAccountCmd) {
-					responseCommand = handleCloseAccountCommand((CloseAccountCmd) command);
-
-				} else if (command instanceof TransferCmd) {
-					responseCommand = handleTransferCommand((TransferCmd) command);
-				}
 				// write back to client
 				sendResponse(responseCommand, session);
+
+				notifySubscribers(responseCommand);
 			}
 
 		} catch (IOException | ClassCastException | ClassNotFoundException e) {
@@ -93,6 +147,106 @@ public class BankServerEndpoint {
 		}
 	}
 
+	/**
+	 * Executes the command and records it in the metrics. The queue time of
+	 * a request is the time spent decoding it, the time it waits for a
+	 * worker thread of the container is not visible to the endpoint.
+	 *
+	 * A command failing with a runtime exception (e.g. on an unknown account
+	 * number) is answered with an error response, so the client does not wait
+	 * for its timeout.
+	 */
+	private Serializable handleCommand(Object command, Session session, long arrival) throws IOException {
+		long start = metrics.started(command, arrival);
+		StageEvent dispatch = StageEvent.begin(TRANSPORT, StageEvent.DISPATCH);
+		Serializable responseCommand;
+		try {
+			responseCommand = executeCommand(command, session);
+		} catch (RuntimeException e) {
+			metrics.failed(command, start, e);
+			Serializable error = errorResponse(command, e);
+			if (error == null)
+				throw e;
+
+			err(command.getClass().getSimpleName() + " failed with " + e);
+			dispatch.end(error, 0);
+			return error;
+		} catch (IOException e) {
+			metrics.failed(command, start, e);
+			throw e;
+		}
+		dispatch.end(responseCommand, 0);
+		metrics.completed(command, start, responseCommand);
+
+		return responseCommand;
+	}
+
+	/**
+	 * Marks the command as failed, <code>null</code> if the command has no
+	 * way to report an error.
+	 */
+	private static Serializable errorResponse(Object command, RuntimeException e) {
+		String errMsg = e.getClass().getSimpleName();
+
+		if (command instanceof GetAccountCmd) {
+			((GetAccountCmd) command).setAccountFound(false);
+			return (GetAccountCmd) command;
+		}
+		if (command instanceof DepositCmd) {
+			((DepositCmd) command).setError(true);
+			return (DepositCmd) command;
+		}
+		if (command instanceof WithdrawCmd) {
+			((WithdrawCmd) command).setError(true);
+			((WithdrawCmd) command).setErrMsg(errMsg);
+			return (WithdrawCmd) command;
+		}
+		if (command instanceof CloseAccountCmd) {
+			((CloseAccountCmd) command).setResult(false);
+			return (CloseAccountCmd) command;
+		}
+		if (command instanceof TransferCmd) {
+			((TransferCmd) command).setError(true);
+			((TransferCmd) command).setErrMsg(errMsg);
+			return (TransferCmd) command;
+		}
+		return null;
+	}
+
+	private Serializable executeCommand(Object command, Session session) throws IOException {
+		Serializable responseCommand = null;
+
+		if (command instanceof NewAccountCmd) {
+			responseCommand = handleNewAccountCommand((NewAccountCmd) command);
+
+		} else if (command instanceof GetAccountCmd) {
+			responseCommand = handleGetAccountCommand((GetAccountCmd) command);
+
+		} else if (command instanceof GetAccountNumbersCmd) {
+			responseCommand = handleGetAccountNumbersCommand((GetAccountNumbersCmd) command);
+
+		} else if (command instanceof GetChangesSinceCmd) {
+			responseCommand = handleGetChangesSinceCommand((GetChangesSinceCmd) command);
+
+		} else if (command instanceof DepositCmd) {
+			responseCommand = handleDepositCommand((DepositCmd) command);
+
+		} else if (command instanceof WithdrawCmd) {
+			responseCommand = handleWithdrawCommand((WithdrawCmd) command);
+
+		} else if (command instanceof CloseAccountCmd) {
+			responseCommand = handleCloseAccountCommand((CloseAccountCmd) command);
+
+		} else if (command instanceof TransferCmd) {
+			responseCommand = handleTransferCommand((TransferCmd) command);
+
+		} else if (command instanceof SubscribeCmd) {
+			responseCommand = handleSubscribeCommand((SubscribeCmd) command, session);
+		}
+
+		return responseCommand;
+	}
+
 	private static String serialize(Serializable o) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ObjectOutputStream oos = new ObjectOutputStream(baos);
@@ -111,10 +265,18 @@ public class BankServerEndpoint {
 
 	private void sendResponse(Serializable command, Session session) throws IOException {
 
+		StageEvent encode = StageEvent.begin(TRANSPORT, StageEvent.SERIALIZE);
 		String responseString = serialize(command);
+		encode.end(command, responseString.length());
+
+		StageEvent write = StageEvent.begin(TRANSPORT, StageEvent.WRITE);
+		sender(session).send(responseString);
+		write.end(command, responseString.length());
 
-		session.getBasicRemote().sendText(responseString);
+	}
 
+	private static SessionSender sender(Session session) {
+		return (SessionSender) session.getUserProperties().get(SENDER);
 	}
 
 	private Serializable handleNewAccountCommand(NewAccountCmd cmd) throws IOException {
@@ -132,10 +294,7 @@ public class BankServerEndpoint {
 
 		// set relevant data on command
 		if (account != null) {
-			cmd.setBalance(account.getBalance());
-			cmd.setActive(account.isActive());
-			cmd.setOwner(account.getOwner());
-			cmd.setAccountFound(true);
+			state(account, cmd);
 
 			log("Send account details of accountNr: " + cmd.getNumber());
 
@@ -155,6 +314,40 @@ public class BankServerEndpoint {
 		return cmd;
 	}
 
+	private Serializable handleGetChangesSinceCommand(GetChangesSinceCmd cmd) throws IOException {
+		List<String> numbers = new ArrayList<>();
+		cmd.setHeadVersion(bank.changeLog.changedSince(cmd.getEpoch(), cmd.getVersion(), numbers));
+		cmd.setEpoch(bank.changeLog.epoch());
+
+		List<GetAccountCmd> accounts = new ArrayList<>(numbers.size());
+		for (String number : numbers) {
+			Account account = bank.getAccount(number);
+			if (account != null)
+				accounts.add(state(account, new GetAccountCmd(number)));
+		}
+		cmd.setAccounts(accounts);
+
+		log("Send " + accounts.size() + " changes since version " + cmd.getVersion() + " to client.");
+
+		return cmd;
+	}
+
+	/**
+	 * Copies the state of the account and the version of its last change to
+	 * the command. Changes are stamped under the lock of the account, so the
+	 * version read under the same lock always belongs to the state.
+	 */
+	private GetAccountCmd state(Account account, GetAccountCmd cmd) {
+		synchronized (account) {
+			cmd.setBalance(account.getBalance());
+			cmd.setActive(account.isActive());
+			cmd.setVersion(bank.changeLog.versionOf(account.getNumber()));
+		}
+		cmd.setOwner(account.getOwner());
+		cmd.setAccountFound(true);
+		return cmd;
+	}
+
 	private Serializable handleDepositCommand(DepositCmd cmd) throws IOException {
 		Account account = bank.getAccount(cmd.getAccountNr());
 
@@ -162,7 +355,10 @@ public class BankServerEndpoint {
 
 		try {
 			account.deposit(cmd.getAmount());
-			cmd.setNewBalance(account.getBalance());
+			synchronized (account) {
+				cmd.setNewBalance(account.getBalance());
+				cmd.setNewVersion(bank.changeLog.versionOf(account.getNumber()));
+			}
 			log("Deposit passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			err("Deposit failed with InactiveException!");
@@ -179,7 +375,10 @@ public class BankServerEndpoint {
 
 		try {
 			account.withdraw(cmd.getAmount());
-			cmd.setNewBalance(account.getBalance());
+			synchronized (account) {
+				cmd.setNewBalance(account.getBalance());
+				cmd.setNewVersion(bank.changeLog.versionOf(account.getNumber()));
+			}
 			log("Withdraw passed, new balance " + account.getBalance());
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -199,9 +398,11 @@ public class BankServerEndpoint {
 
 		boolean closed = bank.closeAccount(cmd.getAccountNr());
 
-		if (closed)
+		if (closed) {
+			// a closed account does not change anymore
+			cmd.setVersion(bank.changeLog.versionOf(cmd.getAccountNr()));
 			log("Account " + cmd.getAccountNr() + " has been closed!");
-		else
+		} else
 			err("Account " + cmd.getAccountNr() + " could not be closed!");
 
 		cmd.setResult(closed);
@@ -218,6 +419,14 @@ public class BankServerEndpoint {
 
 		try {
 			bank.transfer(from, to, cmd.getAmount());
+			synchronized (from) {
+				cmd.setBalanceFromAccount(from.getBalance());
+				cmd.setVersionFromAccount(bank.changeLog.versionOf(from.getNumber()));
+			}
+			synchronized (to) {
+				cmd.setBalanceToAccount(to.getBalance());
+				cmd.setVersionToAccount(bank.changeLog.versionOf(to.getNumber()));
+			}
 			log("Transfer passed, new balances [from: " + from.getBalance() + ", to: " + to.getBalance() + "]");
 		} catch (InactiveException e) {
 			cmd.setError(true);
@@ -236,12 +445,70 @@ public class BankServerEndpoint {
 		return cmd;
 	}
 
-	public Bank getBank() {
-		return bank;
+	private Serializable handleSubscribeCommand(SubscribeCmd cmd, Session session) {
+		// events are only sent as binary frames, see Frames
+		subscribers.add(session, cmd);
+
+		if (cmd.isFiltered())
+			log("Session " + session.getId() + " subscribed to changes of accounts " + cmd.getAccounts()
+					+ " and owners " + cmd.getOwners());
+		else
+			log("Session " + session.getId() + " subscribed to account changes");
+
+		return cmd;
 	}
 
-	public void setBank(Bank bank) {
-		this.bank = bank;
+	/**
+	 * Pushes the new state of the accounts changed by the given command to the
+	 * sessions subscribed to them. The events carry balance and active flag, so the
+	 * clients do not need to fetch the accounts again. Commands are handled
+	 * concurrently and their events may overtake each other, so every event
+	 * carries the version of the state and clients ignore older ones.
+	 */
+	private void notifySubscribers(Serializable command) throws IOException {
+		if (subscribers.isEmpty())
+			return;
+
+		for (String number : changedAccounts(command)) {
+			Account account = bank.getAccount(number);
+			if (account == null)
+				continue;
+
+			GetAccountCmd event = state(account, new GetAccountCmd(number));
+
+			Set<Session> recipients = subscribers.recipients(number, account.getOwner());
+			if (recipients.isEmpty())
+				continue;
+
+			ByteBuffer frame = Frames.encode(Frames.EVENT, event);
+			for (Session subscriber : recipients)
+				sender(subscriber).send(frame.duplicate());
+		}
+	}
+
+	private static List<String> changedAccounts(Serializable command) {
+		if (command instanceof NewAccountCmd)
+			return Collections.singletonList(((NewAccountCmd) command).getAccountNumber());
+
+		if (command instanceof DepositCmd && !((DepositCmd) command).isError())
+			return Collections.singletonList(((DepositCmd) command).getAccountNr());
+
+		if (command instanceof WithdrawCmd && !((WithdrawCmd) command).isError())
+			return Collections.singletonList(((WithdrawCmd) command).getAccountNr());
+
+		if (command instanceof CloseAccountCmd && ((CloseAccountCmd) command).wasClosed())
+			return Collections.singletonList(((CloseAccountCmd) command).getAccountNr());
+
+		if (command instanceof TransferCmd && !((TransferCmd) command).hasError()) {
+			TransferCmd cmd = (TransferCmd) command;
+			return Arrays.asList(cmd.getFromAccountNr(), cmd.getToAccountNr());
+		}
+
+		return Collections.emptyList();
+	}
+
+	public Bank getBank() {
+		return bank;
 	}
 
 	private void log(String s) {
@@ -252,43 +519,66 @@ public class BankServerEndpoint {
 		System.err.println(s);
 	}
 
+	/**
+	 * Thread-safe bank. Every change of an account is stamped in the change
+	 * log while the lock of the account is held.
+	 */
 	static class Bank implements bank.Bank {
 
-		private final Map<String, Account> accounts = new HashMap<>();
+		private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+		private final ChangeLog changeLog = new ChangeLog();
 
 		@Override
 		public Set<String> getAccountNumbers() {
-			Set<String> accountNumbers = new HashSet<>();
-			for (Map.Entry<String, Account> entry : accounts.entrySet()) {
-				if (entry.getValue().isActive())
-					accountNumbers.add(entry.getKey());
-			}
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Set<String> accountNumbers = new HashSet<>();
+				for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+					if (entry.getValue().isActive())
+						accountNumbers.add(entry.getKey());
+				}
 
-			return accountNumbers;
+				return accountNumbers;
+			} finally {
+				event.end("getAccountNumbers", null);
+			}
 		}
 
 		@Override
 		public String createAccount(String owner) {
-			Account newAccount = new Account(owner);
-			accounts.put(newAccount.getNumber(), newAccount);
-
-			return newAccount.getNumber();
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Account newAccount = new Account(owner, changeLog);
+				accounts.put(newAccount.getNumber(), newAccount);
+				changeLog.stamp(newAccount.getNumber());
+
+				return newAccount.getNumber();
+			} finally {
+				event.end("createAccount", null);
+			}
 		}
 
 		@Override
 		public boolean closeAccount(String number) {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				Account account = accounts.get(number);
+
+				if (account == null)
+					return false;
+
+				synchronized (account) {
+					if (account.isActive() && account.getBalance() == 0) {
+						account.active = false;
+						changeLog.stamp(number);
+						return true;
+					}
+				}
 
-			if (!accounts.containsKey(number))
 				return false;
-
-			Account account = accounts.get(number);
-
-			if (account.isActive() && account.getBalance() == 0) {
-				account.active = false;
-				return true;
+			} finally {
+				event.end("closeAccount", number);
 			}
-
-			return false;
 		}
 
 		@Override
@@ -299,12 +589,27 @@ public class BankServerEndpoint {
 		@Override
 		public void transfer(bank.Account from, bank.Account to, double amount)
 				throws IOException, InactiveException, OverdrawException, IllegalArgumentException {
-
-			if (amount < 0)
-				throw new IllegalArgumentException("Can't transfer negative values!");
-
-			from.withdraw(amount);
-			to.deposit(amount);
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (amount < 0)
+					throw new IllegalArgumentException("Can't transfer negative values!");
+
+				// always lock in the same order to prevent deadlocks
+				Object first = from.getNumber().compareTo(to.getNumber()) < 0 ? from : to;
+				Object second = first == from ? to : from;
+
+				synchronized (first) {
+					synchronized (second) {
+						if (!from.isActive() || !to.isActive())
+							throw new InactiveException("Can't transfer from or to an inactive account");
+
+						from.withdraw(amount);
+						to.deposit(amount);
+					}
+				}
+			} finally {
+				event.end("transfer", from.getNumber());
+			}
 		}
 
 	}
@@ -313,14 +618,17 @@ public class BankServerEndpoint {
 
 		private static final long serialVersionUID = 1112843626758025830L;
 
-		private String number;
-		private String owner;
-		private double balance;
-		private boolean active = true;
+		private final String number;
+		private final String owner;
+		private volatile double balance;
+		private volatile boolean active = true;
+
+		private final transient ChangeLog changeLog;
 
-		Account(String owner) {
+		Account(String owner, ChangeLog changeLog) {
 			this.owner = owner;
 			this.number = UUID.randomUUID().toString();
+			this.changeLog = changeLog;
 		}
 
 		@Override
@@ -344,23 +652,36 @@ public class BankServerEndpoint {
 		}
 
 		@Override
-		public void deposit(double amount) throws InactiveException {
-			if (!isActive())
-				throw new InactiveException("Can't deposit on inactive account");
-
-			if (amount > 0)
-				this.balance += amount;
+		public synchronized void deposit(double amount) throws InactiveException {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't deposit on inactive account");
+
+				if (amount > 0) {
+					this.balance += amount;
+					changeLog.stamp(number);
+				}
+			} finally {
+				event.end("deposit", number);
+			}
 		}
 
 		@Override
-		public void withdraw(double amount) throws InactiveException, OverdrawException {
-			if (!isActive())
-				throw new InactiveException("Can't withdraw on inactive account");
-
-			if (balance < amount)
-				throw new OverdrawException("Insufficient balance");
-
-			this.balance -= amount;
+		public synchronized void withdraw(double amount) throws InactiveException, OverdrawException {
+			StageEvent event = StageEvent.begin(TRANSPORT, StageEvent.EXECUTE);
+			try {
+				if (!isActive())
+					throw new InactiveException("Can't withdraw on inactive account");
+
+				if (balance < amount)
+					throw new OverdrawException("Insufficient balance");
+
+				this.balance -= amount;
+				changeLog.stamp(number);
+			} finally {
+				event.end("withdraw", number);
+			}
 		}
 
 	}
@@ -0,0 +1,50 @@
+package ch.fhwn.vesys.websockets.server;
+
+import java.util.Map;
+
+/**
+ * Statistics of one command type, registered as platform MBean by
+ * {@link CommandMetrics}. Times are in microseconds.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public interface CommandStatsMXBean {
+
+	String getCommand();
+
+	long getRequests();
+
+	long getInFlight();
+
+	long getErrors();
+
+	/**
+	 * Failed requests by <code>errMsg</code> of the response or by the
+	 * exception thrown while handling the request.
+	 */
+	Map<String, Long> getErrorsByType();
+
+	double getQueueTimeMean();
+
+	double getQueueTime50thPercentile();
+
+	double getQueueTime99thPercentile();
+
+	double getQueueTime999thPercentile();
+
+	double getQueueTimeMax();
+
+	double getExecutionTimeMean();
+
+	double getExecutionTime50thPercentile();
+
+	double getExecutionTime99thPercentile();
+
+	double getExecutionTime999thPercentile();
+
+	double getExecutionTimeMax();
+
+	void reset();
+
+}
@@ -0,0 +1,133 @@
+package ch.fhwn.vesys.websockets.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.websocket.DeploymentException;
+
+import org.glassfish.tyrus.server.Server;
+
+import bank.Bank;
+import ch.fhwn.vesys.websockets.DeflateExtension;
+import ch.fhwn.vesys.websockets.client.BankDriver;
+
+/**
+ * Load test of the WebSocket bank with and without permessage-deflate. Each
+ * client subscribes to all account changes, fetches the account list and
+ * deposits on random accounts, the bytes on the wire are counted by the
+ * {@link DeflateExtension} of the clients. Without the extension nothing is
+ * compressed, the identity run therefore reports the uncompressed payload of
+ * the deflate run as its wire bytes.
+ *
+ * <pre>
+ * Usage: java ch.fhwn.vesys.websockets.server.CompressionLoadTest [accounts] [clients] [rounds]
+ * </pre>
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class CompressionLoadTest {
+
+	private static final int PORT = 8889;
+
+	public static void main(String[] args) throws Exception {
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		Server server = new Server("localhost", PORT, "/server", null, BankServerEndpoint.class);
+		server.start();
+
+		try {
+			BankDriver setup = connect(null);
+			Bank bank = setup.getBank();
+			for (int i = 0; i < accounts; i++)
+				bank.createAccount("owner-" + i);
+			setup.disconnect();
+
+			long[] identity = run(null, clients, rounds);
+			long[] deflate = run(DeflateExtension.DEFAULT_THRESHOLD, clients, rounds);
+			long[] all = run(0, clients, rounds);
+
+			System.out.println("mode;threshold;wire bytes;ratio;ms");
+			print("identity", "-", deflate[0], identity[2], deflate[0]);
+			print("deflate", String.valueOf(DeflateExtension.DEFAULT_THRESHOLD), deflate[1], deflate[2], deflate[0]);
+			print("deflate", "0", all[1], all[2], all[0]);
+
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void print(String mode, String threshold, long wire, long millis, long raw) {
+		System.out.println(mode + ";" + threshold + ";" + wire + ";" + String.format("%.3f", (double) wire / raw) + ";"
+				+ millis);
+	}
+
+	/**
+	 * @param threshold threshold of the clients, <code>null</code> connects
+	 *            without permessage-deflate
+	 * @return raw bytes, wire bytes and duration in ms
+	 */
+	private static long[] run(Integer threshold, int clients, int rounds) throws Exception {
+		List<DeflateExtension> extensions = new ArrayList<>();
+		List<BankDriver> drivers = new ArrayList<>();
+
+		for (int i = 0; i < clients; i++) {
+			DeflateExtension deflate = threshold != null ? new DeflateExtension(threshold) : null;
+			BankDriver driver = connect(deflate);
+			driver.registerUpdateHandler(id -> {
+			});
+			if (deflate != null)
+				extensions.add(deflate);
+			drivers.add(driver);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		long start = System.nanoTime();
+
+		List<Future<?>> futures = new ArrayList<>();
+		for (BankDriver driver : drivers)
+			futures.add(executor.submit(() -> work(driver.getBank(), rounds)));
+		for (Future<?> f : futures)
+			f.get();
+
+		long millis = (System.nanoTime() - start) / 1_000_000;
+		executor.shutdown();
+
+		for (BankDriver driver : drivers)
+			driver.disconnect();
+
+		long raw = 0, wire = 0;
+		for (DeflateExtension deflate : extensions) {
+			raw += deflate.getRawBytes();
+			wire += deflate.getWireBytes();
+		}
+
+		return new long[] { raw, wire, millis };
+	}
+
+	private static Void work(Bank bank, int rounds) throws Exception {
+		for (int r = 0; r < rounds; r++) {
+			List<String> numbers = new ArrayList<>(bank.getAccountNumbers());
+
+			for (int i = 0; i < 100; i++) {
+				String number = numbers.get(ThreadLocalRandom.current().nextInt(numbers.size()));
+				bank.getAccount(number).deposit(1);
+			}
+		}
+		return null;
+	}
+
+	private static BankDriver connect(DeflateExtension deflate) throws IOException, DeploymentException {
+		BankDriver driver = new BankDriver(deflate);
+		driver.connect(new String[] { "localhost", String.valueOf(PORT) });
+		return driver;
+	}
+
+}
@@ -0,0 +1,152 @@
+package ch.fhwn.vesys.websockets.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.websocket.CloseReason;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * Sends the outbound messages of one session asynchronously. Messages are
+ * queued and written one after the other, since a WebSocket session only
+ * allows one outstanding asynchronous send at a time. The thread which
+ * handled a command therefore never waits for a client.
+ *
+ * Clients which do not keep up are disconnected: if the queue exceeds its
+ * capacity (slow consumer) or a single send does not complete within the
+ * send timeout (stalled consumer), the session is closed.
+ */
+class SessionSender {
+
+	private final Session session;
+	private final int capacity;
+
+	// guarded by this
+	private final Queue<Object> queue = new ArrayDeque<>();
+	private boolean sending = false;
+	private boolean closed = false;
+
+	/**
+	 * @param capacity maximal number of queued messages
+	 * @param sendTimeout time in ms after which a pending send fails
+	 */
+	SessionSender(Session session, int capacity, long sendTimeout) {
+		this.session = session;
+		this.capacity = capacity;
+		session.getAsyncRemote().setSendTimeout(sendTimeout);
+	}
+
+	void send(ByteBuffer message) {
+		enqueue(message);
+	}
+
+	void send(String message) {
+		enqueue(message);
+	}
+
+	private void enqueue(Object message) {
+		boolean overflow = false;
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			if (queue.size() >= capacity) {
+				overflow = closed = true;
+				queue.clear();
+			} else {
+				queue.add(message);
+
+				if (sending)
+					return; // sent as soon as the current send completes
+
+				sending = true;
+			}
+		}
+
+		if (overflow)
+			disconnect("Slow consumer", "outbound queue full");
+		else
+			sendNext();
+	}
+
+	/**
+	 * Sends the queued messages until the queue is empty or a send completes
+	 * asynchronously, in which case its completion continues with the next
+	 * message. Tyrus may complete a send inline, the loop keeps the stack
+	 * flat in that case.
+	 */
+	private void sendNext() {
+		while (true) {
+			Object next;
+
+			synchronized (this) {
+				next = queue.poll();
+
+				if (next == null || closed) {
+					sending = false;
+					return;
+				}
+			}
+
+			Send send = new Send();
+			if (next instanceof ByteBuffer)
+				session.getAsyncRemote().sendBinary((ByteBuffer) next, send);
+			else
+				session.getAsyncRemote().sendText((String) next, send);
+
+			if (!send.completedInline())
+				return;
+		}
+	}
+
+	private void failed(SendResult result) {
+		synchronized (this) {
+			closed = true;
+			queue.clear();
+		}
+
+		disconnect("Stalled consumer", "send failed: " + result.getException());
+	}
+
+	private void disconnect(String reason, String detail) {
+		System.err.println("Closing session " + session.getId() + ": " + reason + ", " + detail);
+
+		try {
+			session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, reason));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Completion of one send. Whichever of the sending thread and the
+	 * completion comes second continues with the next message.
+	 */
+	private class Send implements SendHandler {
+
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		@Override
+		public void onResult(SendResult result) {
+			if (!result.isOK())
+				failed(result);
+			else if (!done.compareAndSet(false, true))
+				sendNext(); // the sending thread has already returned
+		}
+
+		/**
+		 * Called by the sending thread once the send has been started, true if
+		 * the send has already completed successfully.
+		 */
+		boolean completedInline() {
+			return !done.compareAndSet(false, true);
+		}
+	}
+
+}
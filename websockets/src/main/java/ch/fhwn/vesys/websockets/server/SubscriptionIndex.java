@@ -0,0 +1,101 @@
+package ch.fhwn.vesys.websockets.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.websocket.Session;
+
+import bank.commands.SubscribeCmd;
+
+/**
+ * Sessions subscribed to account changes, indexed by account number and
+ * owner. Looking up the recipients of a change only touches the sessions
+ * interested in the account, so the cost of a change grows with the number of
+ * its subscribers and not with the number of connected clients.
+ */
+class SubscriptionIndex {
+
+	private final Set<Session> all = ConcurrentHashMap.newKeySet();
+	private final Map<String, Set<Session>> byAccount = new ConcurrentHashMap<>();
+	private final Map<String, Set<Session>> byOwner = new ConcurrentHashMap<>();
+
+	// subscriptions per session, needed to remove a closed session again
+	private final Map<Session, List<SubscribeCmd>> bySession = new ConcurrentHashMap<>();
+
+	void add(Session session, SubscribeCmd cmd) {
+		bySession.computeIfAbsent(session, s -> Collections.synchronizedList(new ArrayList<>())).add(cmd);
+
+		if (!cmd.isFiltered()) {
+			all.add(session);
+			return;
+		}
+
+		add(byAccount, cmd.getAccounts(), session);
+		add(byOwner, cmd.getOwners(), session);
+	}
+
+	void remove(Session session) {
+		all.remove(session);
+
+		List<SubscribeCmd> cmds = bySession.remove(session);
+		if (cmds == null)
+			return;
+
+		synchronized (cmds) {
+			for (SubscribeCmd cmd : cmds) {
+				remove(byAccount, cmd.getAccounts(), session);
+				remove(byOwner, cmd.getOwners(), session);
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return bySession.isEmpty();
+	}
+
+	/**
+	 * Returns the sessions interested in a change of the given account, every
+	 * session is contained once even if several subscriptions match.
+	 */
+	Set<Session> recipients(String number, String owner) {
+		Set<Session> recipients = new HashSet<>(all);
+
+		Set<Session> sessions = byAccount.get(number);
+		if (sessions != null)
+			recipients.addAll(sessions);
+
+		sessions = owner != null ? byOwner.get(owner) : null;
+		if (sessions != null)
+			recipients.addAll(sessions);
+
+		return recipients;
+	}
+
+	private static void add(Map<String, Set<Session>> index, Set<String> keys, Session session) {
+		if (keys == null)
+			return;
+
+		for (String key : keys)
+			index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(session);
+	}
+
+	private static void remove(Map<String, Set<Session>> index, Set<String> keys, Session session) {
+		if (keys == null)
+			return;
+
+		// drop the entry with its last session, the index would otherwise keep
+		// every account ever subscribed
+		for (String key : keys) {
+			index.computeIfPresent(key, (k, sessions) -> {
+				sessions.remove(session);
+				return sessions.isEmpty() ? null : sessions;
+			});
+		}
+	}
+
+}
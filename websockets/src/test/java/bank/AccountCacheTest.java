@@ -0,0 +1,147 @@
+package bank;
+
+import junit.framework.TestCase;
+
+/**
+ * Versions and generations of the {@link AccountCache}: older states and
+ * refreshes requested before an invalidation must not win.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class AccountCacheTest extends TestCase {
+
+	private static class TestAccount implements Account {
+		private final String number;
+		double balance;
+
+		TestAccount(String number) {
+			this.number = number;
+		}
+
+		@Override
+		public String getNumber() {
+			return number;
+		}
+
+		@Override
+		public String getOwner() {
+			return "owner";
+		}
+
+		@Override
+		public boolean isActive() {
+			return true;
+		}
+
+		@Override
+		public void deposit(double amount) {
+			balance += amount;
+		}
+
+		@Override
+		public void withdraw(double amount) {
+			balance -= amount;
+		}
+
+		@Override
+		public double getBalance() {
+			return balance;
+		}
+	}
+
+	private AccountCache<TestAccount> cache;
+
+	@Override
+	protected void setUp() {
+		cache = new AccountCache<>();
+		cache.computeIfAbsent("1", TestAccount::new);
+	}
+
+	private boolean update(long version, double balance, long generation) {
+		return cache.update("1", version, a -> a.balance = balance, AccountCache.FOREVER, generation);
+	}
+
+	public void testNewEntryIsInvalid() {
+		assertNull(cache.lookup("1"));
+		assertNotNull(cache.get("1"));
+	}
+
+	public void testComputeIfAbsentKeepsProxy() {
+		assertSame(cache.get("1"), cache.computeIfAbsent("1", TestAccount::new));
+	}
+
+	public void testUpdateValidates() {
+		assertTrue(update(1, 10, cache.generation()));
+		assertSame(cache.get("1"), cache.lookup("1"));
+		assertEquals(10.0, cache.get("1").balance);
+	}
+
+	public void testOlderVersionIsIgnored() {
+		assertTrue(update(5, 50, cache.generation()));
+		assertFalse(update(4, 40, cache.generation()));
+		assertEquals(50.0, cache.get("1").balance);
+
+		// the same version may be written again, e.g. by a second read
+		assertTrue(update(5, 50, cache.generation()));
+		assertTrue(update(6, 60, cache.generation()));
+		assertEquals(60.0, cache.get("1").balance);
+	}
+
+	public void testUpdateOfUnknownAccount() {
+		assertFalse(cache.update("2", 1, a -> a.balance = 1, AccountCache.FOREVER, cache.generation()));
+		assertNull(cache.get("2"));
+	}
+
+	public void testInvalidationWinsOverOlderRefresh() {
+		long generation = cache.generation();
+		cache.invalidate("1");
+
+		// the state is written, but the response was requested before the invalidation
+		assertTrue(update(1, 10, generation));
+		assertEquals(10.0, cache.get("1").balance);
+		assertNull(cache.lookup("1"));
+
+		assertTrue(update(2, 20, cache.generation()));
+		assertNotNull(cache.lookup("1"));
+	}
+
+	public void testInvalidate() {
+		update(1, 10, cache.generation());
+		cache.invalidate("1");
+		assertNull(cache.lookup("1"));
+
+		update(2, 20, cache.generation());
+		cache.invalidateAll();
+		assertNull(cache.lookup("1"));
+	}
+
+	public void testTimeToLive() {
+		cache.validate("1", 0, cache.generation());
+		assertNull(cache.lookup("1"));
+
+		cache.validate("1", 60000, cache.generation());
+		assertNotNull(cache.lookup("1"));
+	}
+
+	public void testResetForgetsVersions() {
+		update(100, 10, cache.generation());
+		cache.reset();
+		assertNull(cache.lookup("1"));
+
+		// versions of a restarted server start from the beginning again
+		assertTrue(update(1, 20, cache.generation()));
+		assertEquals(20.0, cache.get("1").balance);
+	}
+
+	public void testHitsAndMisses() {
+		cache.lookup("1");
+		update(1, 10, cache.generation());
+		cache.lookup("1");
+		cache.lookup("2");
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+}
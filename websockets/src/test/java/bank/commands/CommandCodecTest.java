@@ -0,0 +1,192 @@
+package bank.commands;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Encodes every command with the {@link CommandCodec}, decodes it again and
+ * compares all fields. The fields are compared by reflection, so a field
+ * added to a command but not to the codec makes the test fail.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class CommandCodecTest extends TestCase {
+
+	public void testNull() throws Exception {
+		assertNull(CommandCodec.decode(CommandCodec.encode(null)));
+	}
+
+	public void testNewAccount() throws Exception {
+		roundTrip(new NewAccountCmd("owner"));
+
+		NewAccountCmd cmd = new NewAccountCmd("Müller");
+		cmd.setAccountNumber("CH-1");
+		roundTrip(cmd);
+	}
+
+	public void testGetAccount() throws Exception {
+		roundTrip(new GetAccountCmd("CH-1"));
+
+		GetAccountCmd cmd = new GetAccountCmd("CH-1");
+		cmd.setBalance(12.5);
+		cmd.setActive(true);
+		cmd.setOwner("owner");
+		cmd.setAccountFound(true);
+		cmd.setVersion(Long.MAX_VALUE);
+		roundTrip(cmd);
+	}
+
+	public void testGetAccountNumbers() throws Exception {
+		roundTrip(new GetAccountNumbersCmd());
+
+		GetAccountNumbersCmd cmd = new GetAccountNumbersCmd();
+		cmd.setAccounts(set("CH-1", "CH-2", "CH-3"));
+		roundTrip(cmd);
+
+		cmd.setAccounts(new HashSet<String>());
+		roundTrip(cmd);
+	}
+
+	public void testDeposit() throws Exception {
+		roundTrip(new DepositCmd("CH-1", 10));
+
+		DepositCmd cmd = new DepositCmd("CH-1", 0.1);
+		cmd.setNewBalance(100.1);
+		cmd.setNewVersion(7);
+		cmd.setError(true);
+		roundTrip(cmd);
+	}
+
+	public void testWithdraw() throws Exception {
+		WithdrawCmd cmd = new WithdrawCmd("CH-1", 10);
+		cmd.setNewBalance(-1);
+		cmd.setNewVersion(8);
+		roundTrip(cmd);
+
+		cmd.setError(true);
+		cmd.setErrMsg("OverdrawException");
+		roundTrip(cmd);
+	}
+
+	public void testCloseAccount() throws Exception {
+		CloseAccountCmd cmd = new CloseAccountCmd("CH-1");
+		roundTrip(cmd);
+
+		cmd.setResult(true);
+		cmd.setVersion(9);
+		roundTrip(cmd);
+	}
+
+	public void testTransfer() throws Exception {
+		TransferCmd cmd = new TransferCmd("CH-1", "CH-2", 5);
+		roundTrip(cmd);
+
+		cmd.setBalanceFromAccount(95);
+		cmd.setBalanceToAccount(105);
+		cmd.setVersionFromAccount(10);
+		cmd.setVersionToAccount(11);
+		roundTrip(cmd);
+
+		cmd.setError(true);
+		cmd.setErrMsg("InactiveException");
+		roundTrip(cmd);
+	}
+
+	public void testSubscribe() throws Exception {
+		roundTrip(new SubscribeCmd());
+		roundTrip(new SubscribeCmd(set("CH-1", "CH-2"), null));
+		roundTrip(new SubscribeCmd(null, set("owner")));
+	}
+
+	public void testGetChangesSince() throws Exception {
+		roundTrip(new GetChangesSinceCmd(-42, 0));
+
+		GetChangesSinceCmd cmd = new GetChangesSinceCmd(Long.MIN_VALUE, 3);
+		cmd.setHeadVersion(5);
+		List<GetAccountCmd> accounts = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			GetAccountCmd account = new GetAccountCmd("CH-" + i);
+			account.setBalance(i * 10.5);
+			account.setActive(i != 1);
+			account.setOwner(i == 2 ? null : "owner " + i);
+			account.setAccountFound(true);
+			account.setVersion(3 + i);
+			accounts.add(account);
+		}
+		cmd.setAccounts(accounts);
+		roundTrip(cmd);
+	}
+
+	public void testUnknownTag() {
+		try {
+			CommandCodec.decode(new byte[] { 127 });
+			fail("unknown tag decoded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testUnknownCommand() {
+		try {
+			CommandCodec.encode("no command");
+			fail("unknown command encoded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void roundTrip(Object command) throws Exception {
+		Object decoded = CommandCodec.decode(CommandCodec.encode(command));
+		assertSameFields(command.getClass().getSimpleName(), command, decoded);
+	}
+
+	private static void assertSameFields(String path, Object expected, Object actual) throws Exception {
+		if (expected == null || actual == null) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+		assertEquals(path, expected.getClass(), actual.getClass());
+
+		if (!expected.getClass().getName().startsWith("bank.commands.")) {
+			// strings, boxed primitives and the sets of account numbers
+			assertEquals(path, expected, actual);
+			return;
+		}
+
+		for (Class<?> c = expected.getClass(); c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+
+				field.setAccessible(true);
+				Object e = field.get(expected), a = field.get(actual);
+				if (e instanceof List)
+					assertSameList(path + "." + field.getName(), (List<?>) e, a);
+				else
+					assertSameFields(path + "." + field.getName(), e, a);
+			}
+		}
+	}
+
+	private static void assertSameList(String path, List<?> expected, Object actual) throws Exception {
+		assertTrue(path, actual instanceof List);
+		List<?> a = (List<?>) actual;
+		assertEquals(path + ".size", expected.size(), a.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertSameFields(path + "[" + i + "]", expected.get(i), a.get(i));
+	}
+
+	private static Set<String> set(String... strings) {
+		return new HashSet<>(Arrays.asList(strings));
+	}
+
+}
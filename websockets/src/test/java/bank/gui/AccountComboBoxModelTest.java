@@ -0,0 +1,124 @@
+package bank.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import junit.framework.TestCase;
+
+/**
+ * Applies random diffs to the {@link AccountComboBoxModel} and compares it
+ * with a {@link TreeSet} which got the same changes. The diffs are small
+ * (fired per row) as well as large (merged in one pass).
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class AccountComboBoxModelTest extends TestCase {
+
+	private static final int DIFFS = 200;
+	private static final int NUMBERS = 500;
+
+	private AccountComboBoxModel model;
+
+	// size of the model as seen by a listener of its interval events
+	private int listenerSize;
+
+	@Override
+	protected void setUp() {
+		model = new AccountComboBoxModel();
+		listenerSize = 0;
+		model.addListDataListener(new ListDataListener() {
+			@Override
+			public void intervalAdded(ListDataEvent e) {
+				listenerSize += e.getIndex1() - e.getIndex0() + 1;
+			}
+
+			@Override
+			public void intervalRemoved(ListDataEvent e) {
+				listenerSize -= e.getIndex1() - e.getIndex0() + 1;
+			}
+
+			@Override
+			public void contentsChanged(ListDataEvent e) {
+			}
+		});
+	}
+
+	public void testRandomDiffs() {
+		Random random = new Random(42);
+		TreeSet<String> expected = new TreeSet<>();
+
+		for (int d = 0; d < DIFFS; d++) {
+			// every fourth diff is larger than the changes fired per row
+			int size = d % 4 == 0 ? 65 + random.nextInt(200) : 1 + random.nextInt(30);
+			Set<String> added = randomNumbers(random, size);
+			Set<String> removed = randomNumbers(random, random.nextInt(size));
+
+			model.update(added, removed);
+			expected.removeAll(removed);
+			expected.addAll(added);
+
+			assertEquals("diff " + d, new ArrayList<>(expected), model.snapshot());
+			assertEquals("events of diff " + d, model.getSize(), listenerSize);
+			assertSelection("diff " + d);
+		}
+	}
+
+	public void testUpdateKeepsSelection() {
+		model.update(numbers("a", "b", "c"), Collections.<String> emptySet());
+		model.setSelectedItem("b");
+
+		model.update(randomNumbers(new Random(1), 100), numbers("a"));
+		assertEquals("b", model.getSelectedItem());
+
+		model.update(Collections.<String> emptySet(), numbers("b"));
+		assertNotNull(model.getSelectedItem());
+		assertFalse("b".equals(model.getSelectedItem()));
+	}
+
+	public void testRemoveAll() {
+		Set<String> all = randomNumbers(new Random(2), 100);
+		model.update(all, Collections.<String> emptySet());
+		model.update(Collections.<String> emptySet(), all);
+
+		assertEquals(0, model.getSize());
+		assertEquals(0, listenerSize);
+		assertNull(model.getSelectedItem());
+	}
+
+	public void testAddAndRemoveInOneDiff() {
+		model.update(numbers("a", "b"), Collections.<String> emptySet());
+
+		// a number removed and added again within the same diff stays
+		model.update(numbers("b", "c"), numbers("a", "b"));
+		assertEquals(Arrays.asList("b", "c"), model.snapshot());
+	}
+
+	private void assertSelection(String message) {
+		Object selected = model.getSelectedItem();
+		if (model.getSize() == 0)
+			assertNull(message, selected);
+		else
+			assertTrue(message, selected != null && model.contains((String) selected));
+	}
+
+	private static Set<String> randomNumbers(Random random, int size) {
+		Set<String> numbers = new HashSet<>();
+		for (int i = 0; i < size; i++)
+			numbers.add(String.format("%04d", random.nextInt(NUMBERS)));
+		return numbers;
+	}
+
+	private static Set<String> numbers(String... numbers) {
+		return new HashSet<>(Arrays.asList(numbers));
+	}
+
+}
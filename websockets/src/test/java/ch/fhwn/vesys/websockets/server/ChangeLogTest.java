@@ -0,0 +1,88 @@
+package ch.fhwn.vesys.websockets.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Versions and change queries of the {@link ChangeLog}.
+ *
+ * @author Kevin Kirn <kevin.kirn@students.fhnw.ch>
+ * @author Hoang Tran <hoang.tran@students.fhnw.ch>
+ */
+public class ChangeLogTest extends TestCase {
+
+	private ChangeLog log;
+
+	@Override
+	protected void setUp() {
+		log = new ChangeLog();
+	}
+
+	public void testStampIncreases() {
+		long a = log.stamp("a");
+		long b = log.stamp("b");
+		long a2 = log.stamp("a");
+
+		assertTrue(a > 0);
+		assertTrue(b > a);
+		assertTrue(a2 > b);
+		assertEquals(a2, log.versionOf("a"));
+		assertEquals(b, log.versionOf("b"));
+		assertEquals(0, log.versionOf("unknown"));
+	}
+
+	public void testChangedSince() {
+		long a = log.stamp("a");
+		long b = log.stamp("b");
+		log.stamp("c");
+
+		List<String> changed = new ArrayList<>();
+		long head = log.changedSince(log.epoch(), a, changed);
+		assertEquals(Arrays.asList("b", "c"), changed);
+		assertEquals(log.versionOf("c"), head);
+
+		changed.clear();
+		assertEquals(head, log.changedSince(log.epoch(), b, changed));
+		assertEquals(Arrays.asList("c"), changed);
+
+		changed.clear();
+		assertEquals(head, log.changedSince(log.epoch(), head, changed));
+		assertTrue(changed.isEmpty());
+	}
+
+	public void testAccountIsListedOnceWithItsLastChange() {
+		long a = log.stamp("a");
+		log.stamp("b");
+		log.stamp("a");
+
+		List<String> changed = new ArrayList<>();
+		log.changedSince(log.epoch(), 0, changed);
+		assertEquals(Arrays.asList("b", "a"), changed);
+
+		// the first change of a is replaced by the last one
+		changed.clear();
+		log.changedSince(log.epoch(), a, changed);
+		assertEquals(Arrays.asList("b", "a"), changed);
+	}
+
+	public void testOtherEpochYieldsAllAccounts() {
+		log.stamp("a");
+		log.stamp("b");
+		long head = log.stamp("c");
+
+		Set<String> changed = new HashSet<>();
+		assertEquals(head, log.changedSince(log.epoch() + 1, head, changed));
+		assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), changed);
+	}
+
+	public void testLogsHaveTheirOwnEpoch() {
+		// a collision of two random epochs is possible, but very unlikely
+		assertFalse(new ChangeLog().epoch() == log.epoch());
+	}
+
+}